@@ -0,0 +1,103 @@
+package com.wandisco.hivesync.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table name filtering with the compiled {@link Wildcard} against the recursive matcher it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchBenchmark {
+
+    private static final List<String> PATTERNS = Arrays.asList(
+            "sales_*", "*_stage", "dwh_??_*", "raw_*_events_*", "*tmp*", "audit_log");
+
+    @Param({"1000", "100000"})
+    private int tables;
+
+    private List<String> names;
+    private Wildcard compiled;
+    private String pathological;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        String[] prefixes = {"sales_", "dwh_eu_", "raw_web_events_", "orders_", "customer_", "dim_", "fact_"};
+        names = new ArrayList<>(tables);
+        for (int i = 0; i < tables; i++) {
+            names.add(prefixes[random.nextInt(prefixes.length)] + Integer.toString(random.nextInt(), 36)
+                    + (random.nextInt(10) == 0 ? "_stage" : ""));
+        }
+        compiled = Wildcard.compile(PATTERNS);
+        char[] a = new char[30];
+        Arrays.fill(a, 'a');
+        pathological = new String(a);
+    }
+
+    @Benchmark
+    public void recursive(Blackhole bh) {
+        for (String name : names) {
+            bh.consume(recursiveMatch(PATTERNS, name));
+        }
+    }
+
+    @Benchmark
+    public void compiled(Blackhole bh) {
+        for (String name : names) {
+            bh.consume(compiled.matches(name));
+        }
+    }
+
+    @Benchmark
+    public boolean recursiveManyStars() {
+        return recursiveMatch("*a*a*a*a*a*a*b", pathological);
+    }
+
+    @Benchmark
+    public boolean compiledManyStars() {
+        return Wildcard.compile("*a*a*a*a*a*a*b").matches(pathological);
+    }
+
+    private static boolean recursiveMatch(List<String> patterns, String string) {
+        for (String pattern : patterns) {
+            if (recursiveMatch(pattern, string)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the previous Tools.match
+    private static boolean recursiveMatch(String pattern, String string) {
+        if (pattern.isEmpty() && string.isEmpty())
+            return true;
+        if (pattern.length() > 1 && pattern.charAt(0) == '*') {
+            int i = 0;
+            while (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*')
+                i++;
+            pattern = pattern.substring(i);
+        }
+        if (pattern.length() > 1 && pattern.charAt(0) == '*' &&
+                string.isEmpty())
+            return false;
+        if ((pattern.length() > 1 && pattern.charAt(0) == '?') ||
+                (!pattern.isEmpty() && !string.isEmpty() &&
+                        pattern.charAt(0) == string.charAt(0)))
+            return recursiveMatch(pattern.substring(1), string.substring(1));
+        if (!pattern.isEmpty() && pattern.charAt(0) == '*')
+            return recursiveMatch(pattern.substring(1), string) ||
+                    recursiveMatch(pattern, string.substring(1));
+        return false;
+    }
+}
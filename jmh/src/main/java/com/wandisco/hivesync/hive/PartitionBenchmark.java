@@ -0,0 +1,118 @@
+package com.wandisco.hivesync.hive;
+
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.SerDeInfo;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.utils.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-partition work of a sync: building partition names of fetched partitions
+ * and building partitions to create, one page at a time as {@code HiveSync} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class PartitionBenchmark {
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"1000", "100000", "1000000"})
+    private int partitions;
+
+    // data columns of the table, copied into every partition
+    @Param({"10", "200"})
+    private int columns;
+
+    private Table table;
+    private List<String> partColumns;
+    private List<List<String>> values;
+    private List<List<PartitionInfo>> pages;
+
+    @Setup
+    public void setup() {
+        List<FieldSchema> cols = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            cols.add(new FieldSchema("column_" + i, i % 3 == 0 ? "string" : "bigint", "column " + i));
+        }
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setCols(cols);
+        sd.setLocation("hdfs://nn:8020/warehouse/db.db/events");
+        sd.setInputFormat("org.apache.hadoop.hive.ql.io.orc.OrcInputFormat");
+        sd.setOutputFormat("org.apache.hadoop.hive.ql.io.orc.OrcOutputFormat");
+        SerDeInfo serde = new SerDeInfo();
+        serde.setSerializationLib("org.apache.hadoop.hive.ql.io.orc.OrcSerde");
+        serde.setParameters(Collections.singletonMap("serialization.format", "1"));
+        sd.setSerdeInfo(serde);
+        sd.setParameters(new HashMap<>());
+        table = new Table();
+        table.setDbName("db");
+        table.setTableName("events");
+        table.setSd(sd);
+        table.setPartitionKeys(Arrays.asList(
+                new FieldSchema("dt", "string", null),
+                new FieldSchema("hour", "string", null),
+                new FieldSchema("source", "string", null)));
+        partColumns = Arrays.asList("dt", "hour", "source");
+
+        values = new ArrayList<>(partitions);
+        pages = new ArrayList<>();
+        List<PartitionInfo> page = new ArrayList<>(PAGE_SIZE);
+        for (int i = 0; i < partitions; i++) {
+            List<String> v = Arrays.asList(String.format("2024-%02d-%02d", i / 31 % 12 + 1, i % 31 + 1),
+                    Integer.toString(i / 372 % 24), "src" + i / 8928);
+            values.add(v);
+            // fetched partitions only need values and location here
+            String name = FileUtils.makePartName(partColumns, v);
+            StorageDescriptor partSd = new StorageDescriptor();
+            partSd.setLocation(sd.getLocation() + "/" + name);
+            Partition p = new Partition();
+            p.setValues(v);
+            p.setSd(partSd);
+            page.add(new PartitionInfo(name, p));
+            if (page.size() == PAGE_SIZE) {
+                pages.add(page);
+                page = new ArrayList<>(PAGE_SIZE);
+            }
+        }
+        if (!page.isEmpty()) {
+            pages.add(page);
+        }
+    }
+
+    @Benchmark
+    public void makePartName(Blackhole bh) {
+        for (List<String> v : values) {
+            bh.consume(FileUtils.makePartName(partColumns, v));
+        }
+    }
+
+    @Benchmark
+    public void makePartition(Blackhole bh) {
+        for (List<PartitionInfo> page : pages) {
+            for (PartitionInfo p : page) {
+                bh.consume(Commands.makePartition(table, p.getValues(), p.getLocation()));
+            }
+        }
+    }
+
+    @Benchmark
+    public void makePartitionSpec(Blackhole bh) {
+        for (List<PartitionInfo> page : pages) {
+            bh.consume(Commands.makePartitionSpec(table, page));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.wandisco.hivesync.main;
+
+import com.wandisco.hivesync.hive.PartitionIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Diff of the partition name lists of both sides, as done for every partitioned table.
+ * Run with {@code -prof gc} to compare allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx8g"})
+public class DiffBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int partitions;
+
+    // percent of partitions present on one side only
+    @Param({"1", "50"})
+    private int changed;
+
+    private List<String> srcNames;
+    private List<String> dstNames;
+
+    @Setup
+    public void setup() {
+        srcNames = new ArrayList<>(partitions);
+        dstNames = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            String name = String.format("dt=2024-%02d-%02d/hour=%d/source=src%d",
+                    i / 31 % 12 + 1, i % 31 + 1, i / 372 % 24, i / 8928);
+            int bucket = i % 100;
+            if (bucket >= changed) {
+                srcNames.add(name);
+                dstNames.add(name);
+            } else if (bucket % 2 == 0) {
+                srcNames.add(name);
+            } else {
+                dstNames.add(name);
+            }
+        }
+    }
+
+    /**
+     * Hash set diff, as done before {@link PartitionIndex}.
+     */
+    @Benchmark
+    public void hashSet(Blackhole bh) {
+        Set<String> srcParts = new HashSet<>(srcNames);
+        Set<String> dstParts = new HashSet<>(dstNames);
+        bh.consume(srcNames.stream().filter(n -> !dstParts.contains(n)).collect(Collectors.toList()));
+        bh.consume(dstNames.stream().filter(n -> !srcParts.contains(n)).collect(Collectors.toList()));
+    }
+
+    @Benchmark
+    public void index(Blackhole bh) {
+        PartitionIndex srcParts = PartitionIndex.of(srcNames);
+        PartitionIndex dstParts = PartitionIndex.of(dstNames);
+        bh.consume(srcParts.missingIn(dstParts));
+        bh.consume(dstParts.missingIn(srcParts));
+    }
+}
@@ -0,0 +1,100 @@
+package com.wandisco.hivesync.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrency limit and batch size for writes to one metastore, adjusted from observed call latency (AIMD).
+ * <p>
+ * A call within the latency target adds {@code 1/limit} to the concurrency limit (one per window of calls),
+ * and a call within half of the target grows the batch size by 10%. A slower call or an overload error
+ * (timeout, broken connection) halves both, at most once per round trip: calls started before
+ * the last decrease don't decrease again.
+ */
+public class AdaptiveLimiter {
+
+    private static final Logger LOG = LogManager.getLogger(AdaptiveLimiter.class);
+
+    // partitions per write call at most, a page
+    private static final int MAX_BATCH = 1000;
+
+    private static int minLimit = 1;
+    private static long targetNanos = TimeUnit.SECONDS.toNanos(2);
+    private static int minBatch = 50;
+    private static int maxBatch = 1000;
+
+    private final String name;
+    private final int maxLimit;
+    private double limit;
+    private double batch;
+    private int inFlight;
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Starts at the ceilings and backs off when the metastore shows overload.
+     */
+    public AdaptiveLimiter(String name, int maxLimit) {
+        this.name = name;
+        this.maxLimit = Math.max(maxLimit, minLimit);
+        this.limit = this.maxLimit;
+        this.batch = maxBatch;
+    }
+
+    public static void configure(int minLimit, long targetMillis, int minBatch, int maxBatch) {
+        AdaptiveLimiter.minLimit = Math.max(1, minLimit);
+        AdaptiveLimiter.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        if (maxBatch > MAX_BATCH) {
+            LOG.warn("Max batch size {} is above {}, using {}", maxBatch, MAX_BATCH, MAX_BATCH);
+        }
+        AdaptiveLimiter.minBatch = Math.max(1, Math.min(MAX_BATCH, minBatch));
+        AdaptiveLimiter.maxBatch = Math.max(AdaptiveLimiter.minBatch, Math.min(MAX_BATCH, maxBatch));
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Ends a call which took {@code nanos}, {@code overloaded} tells it failed because the metastore is overloaded.
+     */
+    public synchronized void release(long nanos, boolean overloaded) {
+        inFlight--;
+        long start = System.nanoTime() - nanos;
+        if (overloaded || nanos > targetNanos) {
+            if (start - lastDecrease >= 0) {
+                limit = Math.max(minLimit, limit / 2);
+                batch = Math.max(minBatch, batch / 2);
+                lastDecrease = System.nanoTime();
+                LOG.info("Backing off writes to {}: {} concurrent, batches of {} (call took {} ms{})", name,
+                        (int) limit, (int) batch, TimeUnit.NANOSECONDS.toMillis(nanos), overloaded ? ", failed" : "");
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            if (nanos < targetNanos / 2) {
+                batch = Math.min(maxBatch, batch * 1.1);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Ends a call without adjusting the limits, e.g. one rejected by the metastore for its content.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) batch;
+    }
+}
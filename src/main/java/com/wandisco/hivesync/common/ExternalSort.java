@@ -0,0 +1,257 @@
+package com.wandisco.hivesync.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Sorts more strings than fit in memory: every {@code runSize} added strings are sorted and written
+ * to a run file, {@link #iterator()} merges the runs. Duplicates are removed.
+ * Run files are deleted on {@link #close()}, the ones left by a killed process are deleted by the next
+ * {@link #createRunDirectory(Path)} in the same parent directory.
+ */
+public class ExternalSort implements Iterable<String>, AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String PREFIX = "hivesync-";
+    private static final String LOCK = "lock";
+    // a lock file younger than this may not be locked yet by the process creating it
+    private static final long LOCK_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // held until the process exits
+    private static final List<FileChannel> LOCKS = new ArrayList<>();
+
+    private final Path dir;
+    private final int runSize;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+    private List<String> buffer = new ArrayList<>();
+
+    public ExternalSort(Path dir, int runSize) {
+        this.dir = dir;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Creates a directory for the run files of this process in {@code parent}, locked while the process
+     * runs, and deletes the unlocked run directories and run files of processes which didn't clean up.
+     */
+    public static synchronized Path createRunDirectory(Path parent) throws IOException {
+        Files.createDirectories(parent);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(parent, PREFIX + "*")) {
+            for (Path path : stale) {
+                if (Files.isDirectory(path)) {
+                    deleteIfUnlocked(path);
+                } else if (path.getFileName().toString().endsWith(".run")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        Path dir = Files.createTempDirectory(parent, PREFIX);
+        FileChannel lock = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock.lock();
+        LOCKS.add(lock);
+        return dir;
+    }
+
+    private static void deleteIfUnlocked(Path dir) throws IOException {
+        Path lockFile = dir.resolve(LOCK);
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(lockFile).toMillis() < LOCK_GRACE_MILLIS) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            // not created yet, or the directory is being deleted
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return;
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (!file.equals(lockFile)) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            Files.delete(lockFile);
+        } catch (NoSuchFileException | OverlappingFileLockException e) {
+            return;
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    public void add(String s) throws IOException {
+        buffer.add(s);
+        if (buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    public void addAll(Iterable<String> strings) throws IOException {
+        for (String s : strings) {
+            add(s);
+        }
+    }
+
+    /**
+     * Merges the sorted runs. Can be called several times, also concurrently, nothing can be added after
+     * the first call.
+     */
+    @Override
+    public synchronized Iterator<String> iterator() {
+        try {
+            if (buffer != null) {
+                spill();
+                buffer = null;
+            }
+            PriorityQueue<Run> queue = new PriorityQueue<>();
+            for (Path path : runs) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+                readers.add(in);
+                Run run = new Run(in);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            return new Merge(queue);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (DataInputStream in : readers) {
+            in.close();
+        }
+        for (Path path : runs) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Collections.sort(buffer);
+        Files.createDirectories(dir);
+        Path path = Files.createTempFile(dir, PREFIX, ".run");
+        runs.add(path);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+            String last = null;
+            for (String s : buffer) {
+                if (!s.equals(last)) {
+                    writeString(out, s);
+                    last = s;
+                }
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Length-prefixed UTF-8, writeUTF takes up to 64 KB only.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Run implements Comparable<Run> {
+        private final DataInputStream in;
+        private String head;
+
+        private Run(DataInputStream in) {
+            this.in = in;
+        }
+
+        private boolean next() throws IOException {
+            try {
+                head = readString(in);
+                return true;
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(Run o) {
+            return head.compareTo(o.head);
+        }
+    }
+
+    private static class Merge implements Iterator<String> {
+        private final PriorityQueue<Run> queue;
+        private String last;
+
+        private Merge(PriorityQueue<Run> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                // skip strings equal to the last one, found in another run
+                while (!queue.isEmpty() && queue.peek().head.equals(last)) {
+                    advance(queue.poll());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Run run = queue.poll();
+            last = run.head;
+            try {
+                advance(run);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return last;
+        }
+
+        private void advance(Run run) throws IOException {
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.wandisco.hivesync.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Failures collected per table during a sync run and logged at its end.
+ */
+public class FailureReport {
+
+    private static final Logger LOG = LogManager.getLogger(FailureReport.class);
+
+    // partition names kept per table and action
+    private static final int SAMPLE_SIZE = 10;
+
+    private static final Map<String, TableFailures> FAILURES = new ConcurrentSkipListMap<>();
+
+    /**
+     * Records partitions of a table which failed to be written by the given action, e.g. "create".
+     */
+    public static void add(String table, String action, Collection<String> partitions, Throwable error) {
+        FAILURES.computeIfAbsent(table, k -> new TableFailures()).add(action, partitions, error);
+    }
+
+    /**
+     * Records a failure of a whole table or database.
+     */
+    public static void add(String table, String action, Throwable error) {
+        add(table, action, new ArrayList<>(), error);
+    }
+
+    public static void reset() {
+        FAILURES.clear();
+    }
+
+    public static int size() {
+        return FAILURES.size();
+    }
+
+    public static void log() {
+        if (FAILURES.isEmpty()) {
+            return;
+        }
+        LOG.error("Sync failed for {} tables:", FAILURES.size());
+        for (Map.Entry<String, TableFailures> e : FAILURES.entrySet()) {
+            e.getValue().log(e.getKey());
+        }
+    }
+
+    private static class TableFailures {
+        private final Map<String, Failure> actions = new TreeMap<>();
+
+        private synchronized void add(String action, Collection<String> partitions, Throwable error) {
+            Failure f = actions.computeIfAbsent(action, k -> new Failure(error));
+            f.count += Math.max(1, partitions.size());
+            for (String p : partitions) {
+                if (f.sample.size() == SAMPLE_SIZE) {
+                    break;
+                }
+                f.sample.add(p);
+            }
+        }
+
+        private synchronized void log(String table) {
+            for (Map.Entry<String, Failure> e : actions.entrySet()) {
+                Failure f = e.getValue();
+                if (f.sample.isEmpty()) {
+                    LOG.error("Failed {} {}: {}", e.getKey(), table, f.error);
+                } else {
+                    LOG.error("Failed {} {}: {} partitions, e.g. {}, first error: {}",
+                            e.getKey(), table, f.count, f.sample, f.error);
+                }
+            }
+        }
+    }
+
+    private static class Failure {
+        private final String error;
+        private final List<String> sample = new ArrayList<>();
+        private long count;
+
+        private Failure(Throwable error) {
+            this.error = String.valueOf(error);
+        }
+    }
+}
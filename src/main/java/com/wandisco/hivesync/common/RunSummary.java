@@ -0,0 +1,32 @@
+package com.wandisco.hivesync.common;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters collected during a sync run and logged at its end.
+ */
+public class RunSummary {
+
+    private static final Logger LOG = LogManager.getLogger(RunSummary.class);
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentSkipListMap<>();
+
+    public static void add(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public static void reset() {
+        COUNTERS.clear();
+    }
+
+    public static void log() {
+        for (Map.Entry<String, AtomicLong> e : COUNTERS.entrySet()) {
+            LOG.info("Summary: {}: {}", e.getKey(), e.getValue().get());
+        }
+    }
+}
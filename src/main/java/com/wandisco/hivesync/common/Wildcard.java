@@ -0,0 +1,148 @@
+package com.wandisco.hivesync.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of wildcard patterns ({@code *} matches any sequence, {@code ?} any single character)
+ * compiled into one automaton. A pattern may list alternatives separated by {@code |}, as Hive name
+ * patterns do; Hive names can't contain it.
+ * <p>
+ * Every pattern position is a state bit, all patterns share one state set, and a name is matched in a
+ * single pass with a few bit operations per character: time is linear in the name length and there is
+ * no backtracking however many {@code *} the patterns have.
+ */
+public class Wildcard {
+
+    private static final int ASCII = 128;
+
+    private final String[] patterns;
+    private final int words;
+    // states where the pattern starts, after skipping leading '*'
+    private final long[] start;
+    // states that end a pattern
+    private final long[] accept;
+    // states before a '*' (self loop) and before a '?'
+    private final long[] star;
+    private final long[] any;
+    // states before a literal character
+    private final long[][] ascii = new long[ASCII][];
+    private final Map<Character, long[]> other = new HashMap<>();
+
+    private Wildcard(Collection<String> patterns) {
+        this.patterns = patterns.toArray(new String[0]);
+        List<String> tokens = new ArrayList<>(patterns.size());
+        int states = 0;
+        for (String pattern : patterns) {
+            for (String alternative : pattern.split("\\|", -1)) {
+                // a run of '*' is the same as one '*'
+                String p = alternative.replaceAll("\\*+", "*");
+                tokens.add(p);
+                states += p.length() + 1;
+            }
+        }
+        words = Math.max(1, (states + 63) >>> 6);
+        start = new long[words];
+        accept = new long[words];
+        star = new long[words];
+        any = new long[words];
+        int state = 0;
+        for (String p : tokens) {
+            set(start, state);
+            for (int i = 0; i < p.length(); i++, state++) {
+                char c = p.charAt(i);
+                if (c == '*') {
+                    set(star, state);
+                } else if (c == '?') {
+                    set(any, state);
+                } else {
+                    set(literal(c), state);
+                }
+            }
+            set(accept, state++);
+        }
+        closeStars(start);
+    }
+
+    public static Wildcard compile(Collection<String> patterns) {
+        return new Wildcard(patterns);
+    }
+
+    public static Wildcard compile(String pattern) {
+        return new Wildcard(Collections.singletonList(pattern));
+    }
+
+    /**
+     * Whether the whole string matches any of the patterns.
+     */
+    public boolean matches(String string) {
+        long[] current = start.clone();
+        long[] next = new long[words];
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            long[] lit = c < ASCII ? ascii[c] : other.get(c);
+            long carry = 0;
+            long alive = 0;
+            for (int w = 0; w < words; w++) {
+                long s = current[w];
+                long step = s & any[w];
+                if (lit != null) {
+                    step |= s & lit[w];
+                }
+                // consuming the character moves to the next state, a '*' stays where it is
+                next[w] = (step << 1) | carry | (s & star[w]);
+                carry = step >>> 63;
+                alive |= next[w];
+            }
+            if (alive == 0) {
+                return false;
+            }
+            closeStars(next);
+            long[] t = current;
+            current = next;
+            next = t;
+        }
+        for (int w = 0; w < words; w++) {
+            if ((current[w] & accept[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", patterns);
+    }
+
+    /**
+     * A '*' may match nothing: being before it means being after it as well.
+     * Runs of '*' are collapsed at compile time, so one step is enough.
+     */
+    private void closeStars(long[] states) {
+        long carry = 0;
+        for (int w = 0; w < words; w++) {
+            long skip = states[w] & star[w];
+            states[w] |= (skip << 1) | carry;
+            carry = skip >>> 63;
+        }
+    }
+
+    private long[] literal(char c) {
+        if (c < ASCII) {
+            if (ascii[c] == null) {
+                ascii[c] = new long[words];
+            }
+            return ascii[c];
+        }
+        return other.computeIfAbsent(c, k -> new long[words]);
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << (i & 63);
+    }
+}
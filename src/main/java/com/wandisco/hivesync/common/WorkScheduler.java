@@ -0,0 +1,313 @@
+package com.wandisco.hivesync.common;
+
+import com.wandisco.hivesync.hive.HMSClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide scheduler for sync work.
+ * <p>
+ * A fixed number of worker threads take tasks round-robin across groups (databases), so one big database
+ * can't starve the others. Tasks may carry a cost: the costliest waiting task is taken first, ties go
+ * round-robin, and tasks submitted by a running task inherit its cost. Threads waiting in {@link #invokeAll}
+ * run their own not yet started tasks, which makes nested submission safe with a bounded number of threads.
+ * Metastore calls are additionally limited per metastore with {@link #read} and {@link #write},
+ * write concurrency and batch size adapt to the metastore latency with {@link AdaptiveLimiter}.
+ */
+public class WorkScheduler {
+
+    private static final Logger LOG = LogManager.getLogger(WorkScheduler.class);
+
+    private static int threads = 16;
+    private static int maxReads = 16;
+    private static int maxWrites = 8;
+    private static WorkScheduler instance;
+
+    // cost of the task running on the thread
+    private static final ThreadLocal<Long> currentCost = ThreadLocal.withInitial(() -> 0L);
+
+    private final Map<String, Queue<Task<?>>> queues = new HashMap<>();
+    private final Deque<String> groups = new ArrayDeque<>();
+    private long submitted;
+    private final Map<String, Semaphore> readPermits = new ConcurrentHashMap<>();
+    private final Map<String, AdaptiveLimiter> writeLimiters = new ConcurrentHashMap<>();
+    private final int reads;
+    private final int writes;
+    private boolean stopped;
+
+    private WorkScheduler(int threads, int reads, int writes) {
+        this.reads = reads;
+        this.writes = writes;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "sync-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Configures the scheduler returned by the next {@link #get()}. A running one stops its workers
+     * once its queued tasks are taken.
+     */
+    public static synchronized void configure(int threads, int maxReads, int maxWrites) {
+        WorkScheduler.threads = threads;
+        WorkScheduler.maxReads = maxReads;
+        WorkScheduler.maxWrites = maxWrites;
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    public static synchronized WorkScheduler get() {
+        if (instance == null) {
+            LOG.debug("Starting scheduler: {} threads, {} reads and {} writes per metastore",
+                    threads, maxReads, maxWrites);
+            instance = new WorkScheduler(threads, maxReads, maxWrites);
+        }
+        return instance;
+    }
+
+    /**
+     * Submits a task with the cost of the task running on this thread, 0 outside of tasks.
+     */
+    public <T> FutureTask<T> submit(String group, Callable<T> task) {
+        return submit(group, task, currentCost.get());
+    }
+
+    /**
+     * Submits a task, costlier tasks are started first.
+     */
+    public <T> FutureTask<T> submit(String group, Callable<T> task, long cost) {
+        synchronized (queues) {
+            Task<T> ft = new Task<>(task, cost, submitted++);
+            Queue<Task<?>> queue = queues.get(group);
+            if (queue == null) {
+                queue = new PriorityQueue<>();
+                queues.put(group, queue);
+                groups.addLast(group);
+            }
+            queue.add(ft);
+            queues.notify();
+            return ft;
+        }
+    }
+
+    /**
+     * Runs all tasks in the given group and waits for them. The first failure is rethrown
+     * after all tasks are finished.
+     */
+    public <T> List<T> invokeAll(String group, List<Callable<T>> tasks) throws TException {
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(group, task));
+        }
+        return awaitAll(futures);
+    }
+
+    /**
+     * Runs all tasks in the given group, costliest first, and waits for them. Results are in cost order.
+     */
+    public <T> List<T> invokeAll(String group, Map<Callable<T>, Long> costs) throws TException {
+        List<Map.Entry<Callable<T>, Long>> tasks = new ArrayList<>(costs.entrySet());
+        tasks.sort(Map.Entry.<Callable<T>, Long>comparingByValue().reversed());
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Map.Entry<Callable<T>, Long> e : tasks) {
+            futures.add(submit(group, e.getKey(), e.getValue()));
+        }
+        return awaitAll(futures);
+    }
+
+    /**
+     * Runs the tasks of all given groups costliest first across the groups, and waits for them.
+     * Unlike nested {@link #invokeAll} calls per group, a costly task of one group doesn't wait
+     * for the cheaper tasks of the groups submitted before it. Results are in cost order.
+     */
+    public <T> List<T> invokeAllGroups(Map<String, Map<Callable<T>, Long>> groupTasks) throws TException {
+        List<Map.Entry<String, Map.Entry<Callable<T>, Long>>> tasks = new ArrayList<>();
+        for (Map.Entry<String, Map<Callable<T>, Long>> group : groupTasks.entrySet()) {
+            for (Map.Entry<Callable<T>, Long> task : group.getValue().entrySet()) {
+                tasks.add(new AbstractMap.SimpleEntry<>(group.getKey(), task));
+            }
+        }
+        tasks.sort(Comparator.comparing(
+                (Map.Entry<String, Map.Entry<Callable<T>, Long>> e) -> e.getValue().getValue()).reversed());
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Map.Entry<String, Map.Entry<Callable<T>, Long>> e : tasks) {
+            futures.add(submit(e.getKey(), e.getValue().getKey(), e.getValue().getValue()));
+        }
+        return awaitAll(futures);
+    }
+
+    public <T> List<T> awaitAll(List<FutureTask<T>> futures) throws TException {
+        // help with tasks no worker has picked up yet, a started FutureTask ignores run()
+        for (FutureTask<T> ft : futures) {
+            ft.run();
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        Throwable failure = null;
+        for (FutureTask<T> ft : futures) {
+            try {
+                results.add(ft.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TException("Interrupted while waiting for tasks", e);
+            }
+        }
+        if (failure instanceof TException) {
+            throw (TException) failure;
+        } else if (failure != null) {
+            throw new TException(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Runs a metastore read call, at most {@code maxReads} run concurrently per metastore.
+     * Must not be nested or wrap {@link #invokeAll}.
+     */
+    public <T> T read(HMSClient hms, Callable<T> call) throws TException {
+        return limit(readPermits.computeIfAbsent(hms.getUri(), k -> new Semaphore(reads, true)), call);
+    }
+
+    /**
+     * Runs a metastore write call, at most {@code maxWrites} run concurrently per metastore,
+     * fewer while the metastore is slow. Must not be nested or wrap {@link #invokeAll}.
+     */
+    public <T> T write(HMSClient hms, Callable<T> call) throws TException {
+        AdaptiveLimiter limiter = writeLimiter(hms);
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while waiting for metastore permit", e);
+        }
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            limiter.release(System.nanoTime() - start, false);
+            return result;
+        } catch (TTransportException e) {
+            // timeouts and broken connections
+            limiter.release(System.nanoTime() - start, true);
+            throw e;
+        } catch (TException | RuntimeException e) {
+            limiter.release();
+            throw e;
+        } catch (Exception e) {
+            limiter.release();
+            throw new TException(e);
+        }
+    }
+
+    /**
+     * Number of partitions to write to the metastore in one call.
+     */
+    public int writeBatchSize(HMSClient hms) {
+        return writeLimiter(hms).getBatchSize();
+    }
+
+    private AdaptiveLimiter writeLimiter(HMSClient hms) {
+        return writeLimiters.computeIfAbsent(hms.getUri(), k -> new AdaptiveLimiter(k, writes));
+    }
+
+    private <T> T limit(Semaphore permits, Callable<T> call) throws TException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while waiting for metastore permit", e);
+        }
+        try {
+            return call.call();
+        } catch (TException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TException(e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            FutureTask<?> task;
+            synchronized (queues) {
+                while (groups.isEmpty()) {
+                    if (stopped) {
+                        return;
+                    }
+                    try {
+                        queues.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // take the costliest task, the first group in round-robin order on ties,
+                // and move its group to the tail
+                String group = null;
+                long cost = Long.MIN_VALUE;
+                for (String g : groups) {
+                    long c = queues.get(g).peek().cost;
+                    if (c > cost) {
+                        group = g;
+                        cost = c;
+                    }
+                }
+                groups.remove(group);
+                Queue<Task<?>> queue = queues.get(group);
+                task = queue.poll();
+                if (queue.isEmpty()) {
+                    queues.remove(group);
+                } else {
+                    groups.addLast(group);
+                }
+            }
+            task.run();
+        }
+    }
+
+    private void stop() {
+        synchronized (queues) {
+            stopped = true;
+            queues.notifyAll();
+        }
+    }
+
+    private static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        private final long cost;
+        private final long seq;
+
+        private Task(Callable<T> callable, long cost, long seq) {
+            super(callable);
+            this.cost = cost;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long outer = currentCost.get();
+            currentCost.set(cost);
+            try {
+                super.run();
+            } finally {
+                currentCost.set(outer);
+            }
+        }
+
+        // costliest first, then in submission order
+        @Override
+        public int compareTo(Task<?> o) {
+            return cost != o.cost ? Long.compare(o.cost, cost) : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -1,37 +1,106 @@
 package com.wandisco.hivesync.hive;
 
-import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.common.FailureReport;
+import com.wandisco.hivesync.common.RunSummary;
+import com.wandisco.hivesync.common.Wildcard;
+import com.wandisco.hivesync.common.WorkScheduler;
 import org.apache.hadoop.hive.metastore.PartitionDropOptions;
 import org.apache.hadoop.hive.metastore.api.*;
+import org.apache.hadoop.hive.metastore.partition.spec.PartitionSpecProxy;
 import org.apache.hadoop.hive.metastore.utils.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.wandisco.hivesync.common.Tools.awaitTermination;
-
 public abstract class Commands {
 
     private static final Logger LOG = LogManager.getLogger(Commands.class);
 
     private static boolean dryRun = false;
+    private static int tableBatchSize = 100;
+    private static boolean partitionSpec = true;
+    private static int retries = 3;
+    private static long retryBackoff = 1000;
+    private static final Set<String> noPartitionSpec = ConcurrentHashMap.newKeySet();
+    private static final Set<String> noBulkDrop = ConcurrentHashMap.newKeySet();
+    private static final Set<String> noPartitionValues = ConcurrentHashMap.newKeySet();
+    private static List<PartitionFilter> partitionFilters = new ArrayList<>();
 
     public static void setDryRun(boolean isDryRun) {
         dryRun = isDryRun;
     }
 
+    /**
+     * Retries of a failed partition write and the backoff before the first retry, doubled for every next one.
+     */
+    public static void setRetries(int count, long backoffMillis) {
+        retries = count;
+        retryBackoff = Math.max(1, backoffMillis);
+    }
+
+    public static void setTableBatchSize(int size) {
+        tableBatchSize = size;
+    }
+
+    public static int getTableBatchSize() {
+        return tableBatchSize;
+    }
+
+    public static void setPartitionSpec(boolean usePartitionSpec) {
+        partitionSpec = usePartitionSpec;
+    }
+
+    public static void setPartitionFilters(List<PartitionFilter> filters) {
+        partitionFilters = filters;
+    }
+
+    public static boolean isFiltered(TableInfo table) {
+        return partitionFilters.stream().anyMatch(f -> f.matches(table));
+    }
+
+    /**
+     * Filter expression of the partitions to sync, all filters matching the table combined,
+     * or null if all partitions are synced.
+     */
+    public static String getPartitionFilter(TableInfo table) throws MetaException {
+        List<String> filters = new ArrayList<>();
+        LocalDate today = LocalDate.now();
+        for (PartitionFilter filter : partitionFilters) {
+            if (filter.matches(table)) {
+                try {
+                    filters.add("(" + filter.getFilter(table, today) + ")");
+                } catch (IllegalArgumentException e) {
+                    throw new MetaException(e.getMessage());
+                }
+            }
+        }
+        return filters.isEmpty() ? null : String.join(" and ", filters);
+    }
+
     public static List<String> getDatabases(HMSClient hms, String pattern) throws TException {
+        return getDatabases(hms, Wildcard.compile(pattern));
+    }
+
+    public static List<String> getDatabases(HMSClient hms, Wildcard pattern) throws TException {
         LOG.trace("Getting database list");
         return hms.getAllDatabases().stream()
-                .filter(d -> Tools.match(pattern, d))
+                .filter(pattern::matches)
                 .collect(Collectors.toList());
     }
 
@@ -48,12 +117,42 @@ public abstract class Commands {
 
     public static ArrayList<TableInfo> getTables(HMSClient hms, String dbName) throws TException {
         LOG.trace("Getting table list: {}", dbName);
-        ArrayList<TableInfo> tablesInfo = new ArrayList<>();
+        return getTableInfos(hms, dbName, hms.getAllTables(dbName));
+    }
+
+    /**
+     * Same as {@link #getTables(HMSClient, String)}, but limited to the given table names.
+     * Names that do not exist in the metastore are skipped.
+     */
+    public static ArrayList<TableInfo> getTables(HMSClient hms, String dbName, Collection<String> names) throws TException {
+        LOG.trace("Getting tables: {} {}", dbName, names);
+        if (!hms.getAllDatabases().contains(dbName)) {
+            return new ArrayList<>();
+        }
         List<String> tables = hms.getAllTables(dbName);
-        for (String srcTable : tables) {
-            List<PartitionInfo> partitions = queryPartitions(hms, dbName, srcTable);
-            TableInfo ti = new TableInfo(hms.getTable(dbName, srcTable), partitions);
-            tablesInfo.add(ti);
+        tables.retainAll(names);
+        return getTableInfos(hms, dbName, tables);
+    }
+
+    private static ArrayList<TableInfo> getTableInfos(HMSClient hms, String dbName, List<String> tables) throws TException {
+        WorkScheduler scheduler = WorkScheduler.get();
+        List<Callable<List<Table>>> batchTasks = new ArrayList<>();
+        for (int i = 0; i < tables.size(); i += tableBatchSize) {
+            List<String> batch = tables.subList(i, Math.min(i + tableBatchSize, tables.size()));
+            batchTasks.add(() -> {
+                try (HMSClient hmsClient = hms.createClient()) {
+                    List<Table> result = scheduler.read(hmsClient, () -> hmsClient.getTableObjectsByName(dbName, batch));
+                    // one call instead of two getTable calls per table
+                    RunSummary.add("Table metadata round trips saved", 2L * batch.size() - 1);
+                    return result;
+                }
+            });
+        }
+        ArrayList<TableInfo> tablesInfo = new ArrayList<>(tables.size());
+        for (List<Table> batch : scheduler.invokeAll(dbName, batchTasks)) {
+            for (Table table : batch) {
+                tablesInfo.add(new TableInfo(table));
+            }
         }
         return tablesInfo;
     }
@@ -70,10 +169,9 @@ public abstract class Commands {
         if (dryRun) {
             LOG.info("Creating table: {}.{}", table.getDb(), table.getName());
         } else {
-            hms.createTable(tableCopy);
-        }
-        if (table.isPartitioned()) {
-            createPartitions(hms, table, table.getPartitions());
+            try (HMSClient hmsClient = hms.createClient()) {
+                hmsClient.createTable(tableCopy);
+            }
         }
     }
 
@@ -82,99 +180,455 @@ public abstract class Commands {
         if (dryRun) {
             LOG.info("Dropping table: {}.{}", table.getDb(), table.getName());
         } else {
-            hms.dropTable(table.getDb(), table.getName(), false, true);
+            try (HMSClient hmsClient = hms.createClient()) {
+                hmsClient.dropTable(table.getDb(), table.getName(), false, true);
+            }
+        }
+    }
+
+    public static List<String> getPartitionNames(HMSClient hms, TableInfo table) throws TException {
+        LOG.trace("Getting partition names: {}.{}", table.getDb(), table.getName());
+        if (!table.isPartitioned()) {
+            return new ArrayList<>();
+        }
+        String filter = getPartitionFilter(table);
+        try (HMSClient hmsClient = hms.createClient()) {
+            if (filter != null) {
+                return getPartitionNames(hmsClient, table, filter);
+            }
+            return WorkScheduler.get().read(hmsClient,
+                    () -> hmsClient.listPartitionNames(table.getDb(), table.getName(), (short) -1));
+        }
+    }
+
+    /**
+     * Names of the partitions matching a filter expression, in place of the partition filters of the table.
+     */
+    public static List<String> getPartitionNamesByFilter(HMSClient hms, TableInfo table, String filter)
+            throws TException {
+        try (HMSClient hmsClient = hms.createClient()) {
+            return getPartitionNames(hmsClient, table, filter);
+        }
+    }
+
+    /**
+     * Names of the partitions matching the filter, fetched as partition values, without storage descriptors.
+     */
+    private static List<String> getPartitionNames(HMSClient hms, TableInfo table, String filter) throws TException {
+        LOG.trace("Getting partition names: {}.{} where {}", table.getDb(), table.getName(), filter);
+        List<FieldSchema> keys = table.getTable().getPartitionKeys();
+        List<String> columns = keys.stream().map(FieldSchema::getName).collect(Collectors.toList());
+        if (!noPartitionValues.contains(hms.getUri())) {
+            PartitionValuesRequest request = new PartitionValuesRequest(table.getDb(), table.getName(), keys);
+            request.setFilter(filter);
+            request.setApplyDistinct(false);
+            try {
+                List<PartitionValuesRow> rows = WorkScheduler.get().read(hms,
+                        () -> hms.listPartitionValues(request)).getPartitionValues();
+                return rows == null ? new ArrayList<>() : rows.stream()
+                        .map(row -> FileUtils.makePartName(columns, row.getRow()))
+                        .collect(Collectors.toList());
+            } catch (TApplicationException e) {
+                LOG.warn("Metastore doesn't support get_partition_values, using get_partitions_by_filter: {}",
+                        hms.getUri(), e);
+                noPartitionValues.add(hms.getUri());
+            }
+        }
+        return WorkScheduler.get().read(hms,
+                        () -> hms.listPartitionsByFilter(table.getDb(), table.getName(), filter, (short) -1))
+                .stream()
+                .map(p -> FileUtils.makePartName(columns, p.getValues()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Names of the partitions matching a partial spec, values of the leading partition keys.
+     */
+    public static List<String> getPartitionNames(HMSClient hms, TableInfo table, List<String> values) throws TException {
+        LOG.trace("Getting partition names: {}.{} {}", table.getDb(), table.getName(), values);
+        try (HMSClient hmsClient = hms.createClient()) {
+            return WorkScheduler.get().read(hmsClient,
+                    () -> hmsClient.listPartitionNames(table.getDb(), table.getName(), values, (short) -1));
+        }
+    }
+
+    /**
+     * Sets a table parameter, or removes it if {@code value} is null. The DDL time of the table is kept.
+     */
+    public static void setTableParameter(HMSClient hms, TableInfo table, String key, String value) throws TException {
+        LOG.trace("Setting table parameter: {}.{} {}", table.getDb(), table.getName(), key);
+        if (dryRun) {
+            LOG.info("Setting table parameter: {}.{} {}", table.getDb(), table.getName(), key);
+            return;
+        }
+        try (HMSClient hmsClient = hms.createClient()) {
+            WorkScheduler.get().write(hmsClient, () -> {
+                // the listed table may be outdated, altering it would revert changes made since
+                Table current = hmsClient.getTable(table.getDb(), table.getName());
+                Map<String, String> params = current.getParameters() == null
+                        ? new HashMap<>() : new HashMap<>(current.getParameters());
+                if (value == null) {
+                    params.remove(key);
+                } else {
+                    params.put(key, value);
+                }
+                current.setParameters(params);
+                hmsClient.alter_table(table.getDb(), table.getName(), current);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Partition count of a table, a single call; 0 if it isn't partitioned.
+     */
+    public static long getPartitionCount(HMSClient hms, TableInfo table) throws TException {
+        if (!table.isPartitioned()) {
+            return 0;
         }
+        try (HMSClient hmsClient = hms.createClient()) {
+            return countPartitions(hmsClient, table, getPartitionFilter(table));
+        }
+    }
+
+    private static long countPartitions(HMSClient hms, TableInfo table, String filter) throws TException {
+        return WorkScheduler.get().read(hms,
+                () -> hms.getNumPartitionsByFilter(table.getDb(), table.getName(), filter == null ? "" : filter));
     }
 
-    private static List<PartitionInfo> queryPartitions(HMSClient hms, String dbName, String tableName) throws TException {
+    public static Fingerprint getFingerprint(HMSClient hms, TableInfo table) throws TException {
+        long count = 0;
+        String first = "";
+        String last = "";
+        if (table.isPartitioned()) {
+            String filter = getPartitionFilter(table);
+            try (HMSClient hmsClient = hms.createClient()) {
+                count = countPartitions(hmsClient, table, filter);
+                if (count > 0) {
+                    first = getBoundaryName(hmsClient, table, filter, true);
+                    last = getBoundaryName(hmsClient, table, filter, false);
+                }
+            }
+        }
+        return new Fingerprint(table.getDdlTime(), count, Fingerprint.names(first, last));
+    }
+
+    /**
+     * The first or last partition name in partition key order, fetched as a single row of partition values.
+     * Metastores without get_partition_values give the first name by name order, and no last name.
+     */
+    private static String getBoundaryName(HMSClient hms, TableInfo table, String filter,
+                                          boolean first) throws TException {
+        List<FieldSchema> keys = table.getTable().getPartitionKeys();
+        List<String> columns = keys.stream().map(FieldSchema::getName).collect(Collectors.toList());
+        if (!noPartitionValues.contains(hms.getUri())) {
+            PartitionValuesRequest request = new PartitionValuesRequest(table.getDb(), table.getName(), keys);
+            request.setFilter(filter);
+            request.setApplyDistinct(false);
+            request.setPartitionOrder(keys);
+            request.setAscending(first);
+            request.setMaxParts(1);
+            try {
+                List<PartitionValuesRow> rows = WorkScheduler.get().read(hms,
+                        () -> hms.listPartitionValues(request)).getPartitionValues();
+                return rows == null || rows.isEmpty() ? "" : FileUtils.makePartName(columns, rows.get(0).getRow());
+            } catch (TApplicationException e) {
+                LOG.warn("Metastore doesn't support get_partition_values, using get_partition_names: {}",
+                        hms.getUri(), e);
+                noPartitionValues.add(hms.getUri());
+            }
+        }
+        if (!first) {
+            return "";
+        }
+        List<String> names = filter == null
+                ? WorkScheduler.get().read(hms,
+                        () -> hms.listPartitionNames(table.getDb(), table.getName(), (short) 1))
+                : WorkScheduler.get().read(hms,
+                        () -> hms.listPartitionsByFilter(table.getDb(), table.getName(), filter, (short) 1))
+                .stream()
+                .map(p -> FileUtils.makePartName(columns, p.getValues()))
+                .collect(Collectors.toList());
+        return names.isEmpty() ? "" : names.get(0);
+    }
+
+    /**
+     * Fetches full partition objects, only for the given partition names.
+     */
+    public static List<PartitionInfo> getPartitions(HMSClient hms, TableInfo table, List<String> partNames) throws TException {
+        String dbName = table.getDb();
+        String tableName = table.getName();
         LOG.trace("Getting partitions: {}.{}", dbName, tableName);
-        Table table = hms.getTable(dbName, tableName);
-        List<String> partColumns = table
+        WorkScheduler scheduler = WorkScheduler.get();
+        List<String> partColumns = table.getTable()
                 .getPartitionKeys()
                 .stream()
                 .map(FieldSchema::getName)
                 .collect(Collectors.toList());
-        List<PartitionInfo> al = new ArrayList<>();
-        List<String> partNames = hms.listPartitionNames(dbName, tableName, (short) -1);
         int batchSize = 1000;
-        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Callable<List<PartitionInfo>>> tasks = new ArrayList<>();
         for (int i = 0; i < partNames.size(); i += batchSize) {
             List<String> batch = partNames.subList(i, Math.min(i + batchSize, partNames.size()));
-            pool.submit(() -> {
+            tasks.add(() -> {
                 try (HMSClient hmsClient = hms.createClient()) {
-                    List<PartitionInfo> pList = hmsClient.getPartitionsByNames(dbName, tableName, batch)
+                    return scheduler.read(hmsClient, () -> hmsClient.getPartitionsByNames(dbName, tableName, batch))
                             .stream()
                             .map(p -> new PartitionInfo(FileUtils.makePartName(partColumns, p.getValues()), p))
                             .collect(Collectors.toList());
-                    synchronized (al) {
-                        al.addAll(pList);
-                    }
                 }
-                return null;
             });
         }
-        awaitTermination(pool, "Waiting for partitions to be received");
+        List<PartitionInfo> al = new ArrayList<>(partNames.size());
+        for (List<PartitionInfo> pList : scheduler.invokeAll(dbName, tasks)) {
+            al.addAll(pList);
+        }
         return al;
     }
 
-    public static void createPartitions(HMSClient hms, TableInfo table, List<PartitionInfo> parts) {
+    /**
+     * Returns false if any partition failed to be created, failures are logged and added to {@link FailureReport}.
+     */
+    public static boolean createPartitions(HMSClient hms, TableInfo table, List<PartitionInfo> parts) {
+        return writePartitions(hms, table, parts, "create", "Creating partitions", Commands::addPartitions);
+    }
+
+    /**
+     * Returns false if any partition failed to be dropped, failures are logged and added to {@link FailureReport}.
+     */
+    public static boolean dropPartitions(HMSClient hms, TableInfo table, List<PartitionInfo> parts) {
+        PartitionDropOptions options = new PartitionDropOptions()
+                .deleteData(false)
+                .ifExists(true)
+                .returnResults(false);
+        return writePartitions(hms, table, parts, "drop", "Dropping partitions",
+                (client, t, batch) -> dropPartitionBatch(client, t, batch, options));
+    }
+
+    private static boolean writePartitions(HMSClient hms, TableInfo table, List<PartitionInfo> parts,
+                                           String action, String dryRunMessage, BatchWriter writer) {
         if (parts.isEmpty()) {
-            return;
+            return true;
         }
-        LOG.trace("Creating partitions: {}.{}", table.getDb(), table.getName());
-        int batchSize = 1000;
-        ExecutorService pool = Executors.newFixedThreadPool(8);
+        LOG.trace("Writing partitions ({}): {}.{}", action, table.getDb(), table.getName());
+        WorkScheduler scheduler = WorkScheduler.get();
+        int batchSize = scheduler.writeBatchSize(hms);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
         for (int i = 0; i < parts.size(); i += batchSize) {
             List<PartitionInfo> batch = parts.subList(i, Math.min(i + batchSize, parts.size()));
-            pool.submit(() -> {
-                List<Partition> list = batch.stream()
-                        .map(p -> makePartition(table.getTable(), p.getValues(), p.getLocation()))
-                        .collect(Collectors.toList());
+            tasks.add(() -> {
+                if (dryRun) {
+                    LOG.info("{}: {}.{} {}", dryRunMessage, table.getDb(), table.getName(),
+                            batch.stream().map(PartitionInfo::getName).collect(Collectors.joining(",")));
+                    return true;
+                }
                 try (HMSClient hmsClient = hms.createClient()) {
-                    if (dryRun) {
-                        LOG.info("Creating partitions: {}.{} {}", table.getDb(), table.getName(),
-                                batch.stream().map(PartitionInfo::getName).collect(Collectors.joining(",")));
-                    } else {
-                        hmsClient.add_partitions(list, true, false);
-                    }
+                    return writeBatch(hmsClient, table, batch, action, writer);
                 }
-                return null;
             });
         }
-        awaitTermination(pool, "Waiting for partitions to be created");
+        try {
+            return !scheduler.invokeAll(table.getDb(), tasks).contains(false);
+        } catch (TException e) {
+            LOG.error("Error writing partitions ({}): {}.{} in {}", action, table.getDb(), table.getName(),
+                    hms.getUri(), e);
+            FailureReport.add(table.getDb() + "." + table.getName(), action + " in " + hms.getUri(), e);
+            return false;
+        }
     }
 
-    public static void dropPartitions(HMSClient hms, TableInfo table, List<PartitionInfo> parts) {
-        if (parts.isEmpty()) {
-            return;
+    /**
+     * Writes a batch, retrying transient errors with jittered exponential backoff. A batch the metastore
+     * keeps rejecting is split in halves until the partitions it can't take are found.
+     */
+    private static boolean writeBatch(HMSClient hms, TableInfo table, List<PartitionInfo> batch,
+                                      String action, BatchWriter writer) throws TException {
+        TException error = tryWriteBatch(hms, table, batch, action, writer);
+        return error == null || batchFailed(hms, table, batch, action, writer, error);
+    }
+
+    private static boolean batchFailed(HMSClient hms, TableInfo table, List<PartitionInfo> batch,
+                                       String action, BatchWriter writer, TException error) throws TException {
+        if (batch.size() > 1 && isContentError(error)) {
+            LOG.warn("Splitting failed batch of {} partitions to {}: {}.{}: {}", batch.size(), action,
+                    table.getDb(), table.getName(), error.toString());
+            RunSummary.add("Failed partition batches split", 1);
+            int half = batch.size() / 2;
+            List<PartitionInfo> firstHalf = batch.subList(0, half);
+            List<PartitionInfo> secondHalf = batch.subList(half, batch.size());
+            TException first = tryWriteBatch(hms, table, firstHalf, action, writer);
+            TException second = tryWriteBatch(hms, table, secondHalf, action, writer);
+            // halves failing the same way point at the table, not at a partition
+            if (first == null || second == null || !sameFailure(first, second)) {
+                boolean firstDone = first == null || batchFailed(hms, table, firstHalf, action, writer, first);
+                boolean secondDone = second == null || batchFailed(hms, table, secondHalf, action, writer, second);
+                return firstDone && secondDone;
+            }
+            error = first;
         }
-        LOG.trace("Dropping partitions: {}.{}", table.getDb(), table.getName());
-        int batchSize = 1000;
-        ExecutorService pool = Executors.newFixedThreadPool(8);
-        PartitionDropOptions options = new PartitionDropOptions()
-                .deleteData(false)
-                .ifExists(true)
-                .returnResults(false);
-        for (int i = 0; i < parts.size(); i += batchSize) {
-            List<PartitionInfo> batch = parts.subList(i, Math.min(i + batchSize, parts.size()));
-            pool.submit(() -> {
-                try (HMSClient hmsClient = hms.createClient()) {
-                    if (dryRun) {
-                        LOG.info("Dropping partitions: {}.{} {}", table.getDb(), table.getName(),
-                                batch.stream().map(PartitionInfo::getName).collect(Collectors.joining(",")));
-                    } else {
-                        for (PartitionInfo p : batch) {
-                            hmsClient.dropPartition(table.getDb(), table.getName(), p.getValues(), options);
-                        }
-                    }
-                }
+        LOG.error("Failed to {} {} partitions: {}.{} in {}", action, batch.size(), table.getDb(), table.getName(),
+                hms.getUri(), error);
+        FailureReport.add(table.getDb() + "." + table.getName(), action + " in " + hms.getUri(),
+                batch.stream().map(PartitionInfo::getName).collect(Collectors.toList()), error);
+        return false;
+    }
+
+    /**
+     * Returns the error the batch failed with once retries are used up, or null if it was written.
+     */
+    private static TException tryWriteBatch(HMSClient hms, TableInfo table, List<PartitionInfo> batch,
+                                            String action, BatchWriter writer) throws TException {
+        WorkScheduler scheduler = WorkScheduler.get();
+        TException error;
+        int attempt = 0;
+        while (true) {
+            try {
+                scheduler.write(hms, () -> {
+                    writer.write(hms, table, batch);
+                    return null;
+                });
                 return null;
-            });
+            } catch (TException e) {
+                error = e;
+            }
+            if (!isTransient(error) || attempt >= retries) {
+                return error;
+            }
+            attempt++;
+            long backoff = retryBackoff << Math.min(attempt - 1, 16);
+            backoff = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            LOG.warn("Retrying {} of {} partitions in {} ms (attempt {} of {}): {}.{}: {}", action, batch.size(),
+                    backoff, attempt, retries, table.getDb(), table.getName(), error.toString());
+            RunSummary.add("Partition batches retried", 1);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TException("Interrupted while waiting to retry", e);
+            }
+            try {
+                hms.reconnect();
+            } catch (MetaException e) {
+                LOG.debug("Error reconnecting to metastore: {}", hms.getUri(), e);
+            }
+        }
+    }
+
+    /**
+     * Errors that may be caused by some partitions of a batch. An unreachable metastore, a missing or
+     * locked table and a denied permission fail every half the same way.
+     */
+    private static boolean isContentError(TException e) {
+        if (isTransient(e) || e instanceof NoSuchObjectException || e instanceof InvalidOperationException) {
+            return false;
+        }
+        String message = e.getMessage() != null ? e.getMessage().toLowerCase() : "";
+        return !(e instanceof MetaException && (message.contains("permission denied")
+                || message.contains("accesscontrolexception") || message.contains("not authorized")
+                || message.contains("no privilege")));
+    }
+
+    private static boolean sameFailure(TException a, TException b) {
+        return a.getClass() == b.getClass() && Objects.equals(a.getMessage(), b.getMessage());
+    }
+
+    /**
+     * Timeouts, broken connections and database deadlocks reported by the metastore.
+     */
+    private static boolean isTransient(TException e) {
+        if (e instanceof TTransportException) {
+            return true;
+        }
+        String message = e.getMessage();
+        return e instanceof MetaException && message != null
+                && (message.contains("Deadlock") || message.contains("Lock wait timeout"));
+    }
+
+    private interface BatchWriter {
+        void write(HMSClient hms, TableInfo table, List<PartitionInfo> batch) throws TException;
+    }
+
+    private static void addPartitions(HMSClient hms, TableInfo table, List<PartitionInfo> batch) throws TException {
+        if (partitionSpec && !noPartitionSpec.contains(hms.getUri())
+                && batch.stream().allMatch(p -> p.getLocation() != null)) {
+            try {
+                hms.add_partitions_pspec(PartitionSpecProxy.Factory.get(makePartitionSpec(table.getTable(), batch)));
+                MetastoreMetrics.partitions(hms.getUri()).created(batch.size());
+                RunSummary.add("Partition batches created with shared storage descriptor", 1);
+                return;
+            } catch (TApplicationException e) {
+                LOG.warn("Metastore doesn't support add_partitions_pspec, using add_partitions: {}", hms.getUri(), e);
+                noPartitionSpec.add(hms.getUri());
+            } catch (AlreadyExistsException | InvalidObjectException e) {
+                // add_partitions_pspec has no "if not exists" mode
+                LOG.debug("Partition spec rejected, using add_partitions: {}.{}", table.getDb(), table.getName(), e);
+            }
+        }
+        List<Partition> list = batch.stream()
+                .map(p -> makePartition(table.getTable(), p.getValues(), p.getLocation()))
+                .collect(Collectors.toList());
+        hms.add_partitions(list, true, false);
+        MetastoreMetrics.partitions(hms.getUri()).created(batch.size());
+        RunSummary.add("Partition batches created with per-partition storage descriptor", 1);
+    }
+
+    /**
+     * Builds a partition spec where all partitions share one copy of the table storage descriptor,
+     * so the column list is sent once per batch. Partition locations are relative to the shared location.
+     */
+    static PartitionSpec makePartitionSpec(Table table, List<PartitionInfo> batch) {
+        String tableLocation = table.getSd().getLocation();
+        String root = tableLocation != null && batch.stream().allMatch(p -> p.getLocation().startsWith(tableLocation))
+                ? tableLocation : "";
+        List<PartitionWithoutSD> partitions = new ArrayList<>(batch.size());
+        for (PartitionInfo p : batch) {
+            PartitionWithoutSD partition = new PartitionWithoutSD();
+            partition.setValues(p.getValues());
+            partition.setLastAccessTime(0);
+            partition.setRelativePath(p.getLocation().substring(root.length()));
+            Map<String, String> params = new HashMap<>();
+            params.put("replicated", "true");
+            partition.setParameters(params);
+            partitions.add(partition);
+        }
+        StorageDescriptor sdCopy = table.getSd().deepCopy();
+        sdCopy.setLocation(root);
+
+        PartitionSpec spec = new PartitionSpec();
+        spec.setDbName(table.getDbName());
+        spec.setTableName(table.getTableName());
+        spec.setRootPath(root);
+        spec.setSharedSDPartitionSpec(new PartitionSpecWithSharedSD(partitions, sdCopy));
+        return spec;
+    }
+
+    private static void dropPartitionBatch(HMSClient hms, TableInfo table, List<PartitionInfo> batch,
+                                           PartitionDropOptions options) throws TException {
+        long start = System.nanoTime();
+        boolean bulk = HMSClient.canDropPartitionsByNames() && !noBulkDrop.contains(hms.getUri());
+        if (bulk) {
+            try {
+                hms.dropPartitionsByNames(table.getDb(), table.getName(),
+                        batch.stream().map(PartitionInfo::getName).collect(Collectors.toList()), false);
+            } catch (TApplicationException e) {
+                LOG.warn("Metastore doesn't support drop_partitions_req, using dropPartition: {}", hms.getUri(), e);
+                noBulkDrop.add(hms.getUri());
+                bulk = false;
+            }
+        }
+        if (!bulk) {
+            for (PartitionInfo p : batch) {
+                hms.dropPartition(table.getDb(), table.getName(), p.getValues(), options);
+            }
         }
-        awaitTermination(pool, "Waiting for partitions to be dropped");
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.debug("Dropped {} partitions of {}.{} in {} ms ({})", batch.size(), table.getDb(), table.getName(),
+                millis, bulk ? "bulk" : "one by one");
+        MetastoreMetrics.partitions(hms.getUri()).dropped(batch.size());
+        RunSummary.add("Partition drop batches", 1);
+        RunSummary.add("Partition drop batch time, ms", millis);
     }
 
-    private static Partition makePartition(Table table, List<String> values, String location) {
+    static Partition makePartition(Table table, List<String> values, String location) {
         Partition partition = new Partition();
         partition.setDbName(table.getDbName());
         partition.setTableName(table.getTableName());
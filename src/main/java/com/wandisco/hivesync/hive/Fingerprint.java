@@ -0,0 +1,75 @@
+package com.wandisco.hivesync.hive;
+
+import java.util.Objects;
+
+/**
+ * Cheap change marker of one side of a table: the table DDL time, the partition count and a hash of the first
+ * and last partition names. All are available without listing partitions. Adding or dropping partitions doesn't
+ * change the DDL time, the names catch a table adding its newest partition and dropping its oldest one.
+ */
+public class Fingerprint {
+
+    private final long ddlTime;
+    private final long partitionCount;
+    // hex hash of the first and last partition names, null if parsed from a record without it
+    private final String names;
+
+    public Fingerprint(long ddlTime, long partitionCount, String names) {
+        this.ddlTime = ddlTime;
+        this.partitionCount = partitionCount;
+        this.names = names;
+    }
+
+    /**
+     * Hash of the first and last partition names of a table.
+     */
+    public static String names(String first, String last) {
+        return Long.toHexString(PartitionDigest.hash(first + "\n" + last));
+    }
+
+    /**
+     * Parses the {@link #toString()} form. Fingerprints written without names never equal current ones.
+     */
+    public static Fingerprint parse(String s) {
+        String[] f = s.split(":", 3);
+        return new Fingerprint(Long.parseLong(f[0]), Long.parseLong(f[1]), f.length > 2 ? f[2] : null);
+    }
+
+    public long getDdlTime() {
+        return ddlTime;
+    }
+
+    public long getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Whether this fingerprint has the given DDL time and partition count, whatever its names.
+     */
+    public boolean matches(long ddlTime, long partitionCount) {
+        return this.ddlTime == ddlTime && this.partitionCount == partitionCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        Fingerprint that = (Fingerprint) o;
+        return ddlTime == that.ddlTime && partitionCount == that.partitionCount
+                && names != null && names.equals(that.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ddlTime, partitionCount, names);
+    }
+
+    @Override
+    public String toString() {
+        return ddlTime + ":" + partitionCount + (names != null ? ":" + names : "");
+    }
+}
@@ -2,15 +2,152 @@ package com.wandisco.hivesync.hive;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.DropPartitionsRequest;
 import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.RequestPartsSpec;
+import org.apache.hadoop.hive.metastore.api.ThriftHiveMetastore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class HMSClient extends HiveMetaStoreClient {
 
+    private static final Logger LOG = LogManager.getLogger(HMSClient.class);
+
+    private static final Field THRIFT_CLIENT = thriftClientField();
+
+    private final HMSClientPool pool;
+    private final AtomicBoolean borrowed = new AtomicBoolean();
+    // set when a call failed with a transport error, the connection isn't reused
+    private volatile boolean broken;
+
     public HMSClient(Configuration conf) throws MetaException {
+        this(conf, null);
+    }
+
+    HMSClient(Configuration conf, HMSClientPool pool) throws MetaException {
         super(conf);
+        this.pool = pool;
+        instrument();
     }
 
+    @Override
+    public void reconnect() throws MetaException {
+        super.reconnect();
+        broken = false;
+        instrument();
+    }
+
+    /**
+     * Borrows a connection to the same metastore from the shared pool, {@link #close()} returns it back.
+     */
     public HMSClient createClient() throws MetaException {
-        return new HMSClient(conf);
+        return HMSClientPool.get(conf).borrow();
+    }
+
+    public String getUri() {
+        return conf.get("hive.metastore.uris");
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.release(this);
+        } else {
+            super.close();
+        }
+    }
+
+    /**
+     * Whether {@link #dropPartitionsByNames} can be used with this client library.
+     */
+    public static boolean canDropPartitionsByNames() {
+        return THRIFT_CLIENT != null;
+    }
+
+    /**
+     * Drops partitions by name with a single drop_partitions_req call. IMetaStoreClient only offers
+     * the expression based variant, which needs serialized Hive expressions, so the Thrift request
+     * is sent directly.
+     */
+    public void dropPartitionsByNames(String dbName, String tableName, List<String> partNames,
+                                      boolean deleteData) throws TException {
+        DropPartitionsRequest request = new DropPartitionsRequest(dbName, tableName, RequestPartsSpec.names(partNames));
+        request.setDeleteData(deleteData);
+        request.setIfExists(true);
+        request.setNeedResult(false);
+        try {
+            ((ThriftHiveMetastore.Iface) THRIFT_CLIENT.get(this)).drop_partitions_req(request);
+        } catch (IllegalAccessException e) {
+            throw new MetaException("Can't access metastore thrift client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wraps the thrift client so that every metastore call is counted and timed, whatever client method makes it.
+     */
+    private void instrument() {
+        if (THRIFT_CLIENT == null) {
+            return;
+        }
+        try {
+            ThriftHiveMetastore.Iface client = (ThriftHiveMetastore.Iface) THRIFT_CLIENT.get(this);
+            if (client == null || Proxy.isProxyClass(client.getClass())) {
+                return;
+            }
+            String uri = getUri();
+            THRIFT_CLIENT.set(this, Proxy.newProxyInstance(ThriftHiveMetastore.Iface.class.getClassLoader(),
+                    new Class<?>[]{ThriftHiveMetastore.Iface.class}, (proxy, method, args) -> {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(client, args);
+                        }
+                        long start = System.nanoTime();
+                        boolean failed = true;
+                        try {
+                            Object result = method.invoke(client, args);
+                            failed = false;
+                            return result;
+                        } catch (InvocationTargetException e) {
+                            if (e.getCause() instanceof TTransportException) {
+                                broken = true;
+                            }
+                            throw e.getCause();
+                        } finally {
+                            MetastoreMetrics.rpc(uri, method.getName()).record(System.nanoTime() - start, failed);
+                        }
+                    }));
+        } catch (IllegalAccessException | RuntimeException e) {
+            LOG.warn("Can't instrument metastore thrift client, no call metrics are collected", e);
+        }
+    }
+
+    private static Field thriftClientField() {
+        try {
+            Field field = HiveMetaStoreClient.class.getDeclaredField("client");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            LOG.warn("Metastore thrift client is not accessible, partitions are dropped one by one", e);
+            return null;
+        }
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    boolean setBorrowed(boolean value) {
+        return borrowed.getAndSet(value) != value;
+    }
+
+    void closeConnection() {
+        super.close();
     }
 }
@@ -0,0 +1,192 @@
+package com.wandisco.hivesync.hive;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of metastore connections, one pool per metastore URI.
+ * Clients are borrowed with {@link HMSClient#createClient()} and go back to the pool on {@link HMSClient#close()}.
+ */
+public class HMSClientPool {
+
+    private static final Logger LOG = LogManager.getLogger(HMSClientPool.class);
+
+    private static final Map<String, HMSClientPool> POOLS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hms-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 2 x (default threads + 1), a worker's outer client and nested ones never wait for each other
+    private static int maxSize = 34;
+    private static long idleTimeout = TimeUnit.MINUTES.toMillis(5);
+    private static long validateAfter = TimeUnit.SECONDS.toMillis(30);
+    private static long borrowTimeout = TimeUnit.MINUTES.toMillis(10);
+
+    private final String uri;
+    private final Configuration conf;
+    private final Semaphore permits;
+    private final Deque<IdleClient> idle = new ArrayDeque<>();
+
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong failedChecks = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private HMSClientPool(String uri, Configuration conf) {
+        this.uri = uri;
+        this.conf = conf;
+        this.permits = new Semaphore(maxSize, true);
+        EVICTOR.scheduleWithFixedDelay(this::evictIdle, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+    }
+
+    public static void setMaxSize(int size) {
+        maxSize = size;
+    }
+
+    public static void setIdleTimeout(long seconds) {
+        idleTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    static HMSClientPool get(Configuration conf) {
+        String uri = conf.get("hive.metastore.uris");
+        String key = uri + ";sasl=" + conf.get("hive.metastore.sasl.enabled");
+        return POOLS.computeIfAbsent(key, k -> new HMSClientPool(uri, conf));
+    }
+
+    HMSClient borrow() throws MetaException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MetaException("Timed out waiting for a metastore connection: " + uri);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetaException("Interrupted while waiting for a metastore connection: " + uri);
+        }
+        long wait = System.nanoTime() - start;
+        waitNanos.addAndGet(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+        borrowed.incrementAndGet();
+        try {
+            IdleClient ic;
+            while ((ic = pollIdle()) != null) {
+                if (System.currentTimeMillis() - ic.since < validateAfter || isHealthy(ic.client)) {
+                    ic.client.setBorrowed(true);
+                    return ic.client;
+                }
+                failedChecks.incrementAndGet();
+                ic.client.closeConnection();
+            }
+            HMSClient client = new HMSClient(conf, this);
+            created.incrementAndGet();
+            client.setBorrowed(true);
+            return client;
+        } catch (MetaException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the client to the pool, or closes it if a call on it failed with a transport error,
+     * so the next borrower doesn't get a broken connection without a health check.
+     */
+    void release(HMSClient client) {
+        if (!client.setBorrowed(false)) {
+            return;
+        }
+        if (client.isBroken()) {
+            discarded.incrementAndGet();
+            client.closeConnection();
+        } else {
+            synchronized (idle) {
+                idle.push(new IdleClient(client));
+            }
+        }
+        permits.release();
+    }
+
+    private IdleClient pollIdle() {
+        synchronized (idle) {
+            // most recently returned first, so that rarely used connections age out
+            return idle.pollFirst();
+        }
+    }
+
+    private boolean isHealthy(HMSClient client) {
+        try {
+            client.getAllDatabases();
+            return true;
+        } catch (Exception e) {
+            LOG.debug("Dropping broken metastore connection: {}", uri, e);
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            Iterator<IdleClient> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                IdleClient ic = it.next();
+                if (now - ic.since < idleTimeout) {
+                    break;
+                }
+                it.remove();
+                ic.client.closeConnection();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    private void logStats() {
+        long count = borrowed.get();
+        LOG.info("Metastore connections {}: borrowed {}, created {}, evicted {}, failed checks {}, " +
+                        "discarded broken {}, wait total {} ms, avg {} ms, max {} ms",
+                uri, count, created.get(), evicted.get(), failedChecks.get(), discarded.get(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.get()),
+                count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / count),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    public static void logAllStats() {
+        POOLS.values().forEach(HMSClientPool::logStats);
+    }
+
+    public static void closeAll() {
+        for (HMSClientPool pool : POOLS.values()) {
+            synchronized (pool.idle) {
+                pool.idle.forEach(ic -> ic.client.closeConnection());
+                pool.idle.clear();
+            }
+        }
+    }
+
+    private static class IdleClient {
+        private final HMSClient client;
+        private final long since = System.currentTimeMillis();
+
+        private IdleClient(HMSClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.wandisco.hivesync.hive;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per metastore call counts, errors and latency histograms, and partition write counters.
+ * <p>
+ * Metrics are registered as MBeans under the {@code hivesync} domain as they appear and can be dumped
+ * in Prometheus text format to a file, e.g. for the node exporter textfile collector.
+ */
+public class MetastoreMetrics {
+
+    private static final Logger LOG = LogManager.getLogger(MetastoreMetrics.class);
+
+    // histogram bucket upper bounds, seconds
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final Map<String, RpcStats> RPCS = new ConcurrentHashMap<>();
+    private static final Map<String, PartitionStats> PARTITIONS = new ConcurrentHashMap<>();
+
+    private static Path metricsFile;
+
+    /**
+     * Dumps the metrics to the file every {@code intervalSeconds} and on {@link #writeFile()}.
+     */
+    public static synchronized void setMetricsFile(String file, long intervalSeconds) {
+        if (metricsFile != null || file == null) {
+            return;
+        }
+        metricsFile = Paths.get(file);
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(MetastoreMetrics::writeFile, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static RpcStats rpc(String uri, String method) {
+        return RPCS.computeIfAbsent(uri + " " + method, k -> register(new RpcStats(uri, method), RpcStatsMBean.class,
+                "type=Rpc,metastore=" + ObjectName.quote(uri) + ",method=" + method));
+    }
+
+    public static PartitionStats partitions(String uri) {
+        return PARTITIONS.computeIfAbsent(uri, k -> register(new PartitionStats(uri), PartitionStatsMBean.class,
+                "type=Partitions,metastore=" + ObjectName.quote(uri)));
+    }
+
+    /**
+     * Call counts of a metastore by method name.
+     */
+    public static Map<String, Long> callCounts(String uri) {
+        Map<String, Long> counts = new TreeMap<>();
+        for (RpcStats s : RPCS.values()) {
+            if (s.uri.equals(uri)) {
+                counts.put(s.method, s.getCount());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Logs the calls of every metastore, the most time consuming first.
+     */
+    public static void logAll() {
+        List<RpcStats> stats = new ArrayList<>(RPCS.values());
+        stats.sort(Comparator.comparingLong((RpcStats s) -> s.nanos.get()).reversed());
+        for (RpcStats s : stats) {
+            LOG.info("Metastore calls {} {}: count {}, errors {}, total {} ms, avg {} ms, p99 {} ms, max {} ms",
+                    s.uri, s.method, s.getCount(), s.getErrors(), TimeUnit.NANOSECONDS.toMillis(s.nanos.get()),
+                    s.getMeanMillis(), s.getP99Millis(), s.getMaxMillis());
+        }
+        for (PartitionStats p : new TreeMap<>(PARTITIONS).values()) {
+            LOG.info("Partitions {}: created {} ({}/s), dropped {} ({}/s)", p.uri,
+                    p.getCreated(), p.getCreatedPerSecond(), p.getDropped(), p.getDroppedPerSecond());
+        }
+    }
+
+    public static synchronized void writeFile() {
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            Path tmp = metricsFile.resolveSibling(metricsFile.getFileName() + ".tmp");
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writePrometheus(w);
+            }
+            Files.move(tmp, metricsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Error writing metrics file: {}", metricsFile, e);
+        }
+    }
+
+    private static void writePrometheus(Writer w) throws IOException {
+        Collection<RpcStats> rpcs = new TreeMap<>(RPCS).values();
+        Collection<PartitionStats> partitions = new TreeMap<>(PARTITIONS).values();
+        w.write("# HELP hivesync_rpc_calls_total Metastore calls.\n# TYPE hivesync_rpc_calls_total counter\n");
+        for (RpcStats s : rpcs) {
+            w.write("hivesync_rpc_calls_total" + s.labels("") + " " + s.getCount() + "\n");
+        }
+        w.write("# HELP hivesync_rpc_errors_total Failed metastore calls.\n# TYPE hivesync_rpc_errors_total counter\n");
+        for (RpcStats s : rpcs) {
+            w.write("hivesync_rpc_errors_total" + s.labels("") + " " + s.getErrors() + "\n");
+        }
+        w.write("# HELP hivesync_rpc_duration_seconds Metastore call latency.\n" +
+                "# TYPE hivesync_rpc_duration_seconds histogram\n");
+        for (RpcStats s : rpcs) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += s.buckets.get(i);
+                w.write("hivesync_rpc_duration_seconds_bucket" + s.labels(",le=\"" + BUCKETS[i] + "\"")
+                        + " " + cumulative + "\n");
+            }
+            w.write("hivesync_rpc_duration_seconds_bucket" + s.labels(",le=\"+Inf\"") + " " + s.getCount() + "\n");
+            w.write("hivesync_rpc_duration_seconds_sum" + s.labels("") + " " + s.nanos.get() / 1e9 + "\n");
+            w.write("hivesync_rpc_duration_seconds_count" + s.labels("") + " " + s.getCount() + "\n");
+        }
+        w.write("# HELP hivesync_partitions_created_total Partitions created.\n" +
+                "# TYPE hivesync_partitions_created_total counter\n");
+        for (PartitionStats p : partitions) {
+            w.write("hivesync_partitions_created_total{metastore=\"" + escape(p.uri) + "\"} " + p.getCreated() + "\n");
+        }
+        w.write("# HELP hivesync_partitions_dropped_total Partitions dropped.\n" +
+                "# TYPE hivesync_partitions_dropped_total counter\n");
+        for (PartitionStats p : partitions) {
+            w.write("hivesync_partitions_dropped_total{metastore=\"" + escape(p.uri) + "\"} " + p.getDropped() + "\n");
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static <I, T extends I> T register(T mbean, Class<I> type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(mbean, type), new ObjectName("hivesync:" + name));
+        } catch (JMException e) {
+            LOG.warn("Error registering metrics MBean", e);
+        }
+        return mbean;
+    }
+
+    public interface RpcStatsMBean {
+        long getCount();
+
+        long getErrors();
+
+        long getMeanMillis();
+
+        long getP99Millis();
+
+        long getMaxMillis();
+    }
+
+    public static class RpcStats implements RpcStatsMBean {
+        private final String uri;
+        private final String method;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        private RpcStats(String uri, String method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        public void record(long elapsedNanos, boolean failed) {
+            count.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            nanos.addAndGet(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+            double seconds = elapsedNanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.get();
+        }
+
+        @Override
+        public long getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos.get() / n);
+        }
+
+        /**
+         * Upper bound of the histogram bucket holding the 99th percentile.
+         */
+        @Override
+        public long getP99Millis() {
+            long rank = (long) Math.ceil(count.get() * 0.99);
+            if (rank == 0) {
+                return 0;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return (long) (BUCKETS[i] * 1000);
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        private String labels(String extra) {
+            return "{metastore=\"" + escape(uri) + "\",method=\"" + escape(method) + "\"" + extra + "}";
+        }
+    }
+
+    public interface PartitionStatsMBean {
+        long getCreated();
+
+        long getDropped();
+
+        long getCreatedPerSecond();
+
+        long getDroppedPerSecond();
+    }
+
+    public static class PartitionStats implements PartitionStatsMBean {
+        private final String uri;
+        private final long since = System.nanoTime();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private PartitionStats(String uri) {
+            this.uri = uri;
+        }
+
+        public void created(int partitions) {
+            created.addAndGet(partitions);
+        }
+
+        public void dropped(int partitions) {
+            dropped.addAndGet(partitions);
+        }
+
+        @Override
+        public long getCreated() {
+            return created.get();
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Average since the first partition write to this metastore.
+         */
+        @Override
+        public long getCreatedPerSecond() {
+            return perSecond(created.get());
+        }
+
+        @Override
+        public long getDroppedPerSecond() {
+            return perSecond(dropped.get());
+        }
+
+        private long perSecond(long value) {
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+            return value * 1000 / millis;
+        }
+    }
+}
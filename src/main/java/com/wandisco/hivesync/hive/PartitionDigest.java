@@ -0,0 +1,137 @@
+package com.wandisco.hivesync.hive;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Digest of the partition name set of a table, kept in the {@link #PARAMETER} parameter of the destination
+ * table after a sync.
+ * <p>
+ * Names are hashed into buckets by their first {@code key=value} part, so the names of a bucket can be listed
+ * with partial partition specs. Every bucket holds its partition count and the sum of its name hashes;
+ * buckets differing between two digests are the only ones whose names can differ.
+ */
+public class PartitionDigest {
+
+    public static final String PARAMETER = "replicated.digest";
+
+    static final int BUCKETS = 32;
+    private static final String VERSION = "1";
+
+    private final long[] counts = new long[BUCKETS];
+    private final long[] hashes = new long[BUCKETS];
+
+    private PartitionDigest() {
+    }
+
+    public static PartitionDigest of(Collection<String> names) {
+        PartitionDigest digest = new PartitionDigest();
+        for (String name : names) {
+            int b = bucket(name);
+            digest.counts[b]++;
+            digest.hashes[b] += hash(name);
+        }
+        return digest;
+    }
+
+    /**
+     * The digest of the names without the given ones, which must be among them.
+     */
+    public PartitionDigest without(Collection<String> names) {
+        PartitionDigest digest = new PartitionDigest();
+        System.arraycopy(counts, 0, digest.counts, 0, BUCKETS);
+        System.arraycopy(hashes, 0, digest.hashes, 0, BUCKETS);
+        for (String name : names) {
+            int b = bucket(name);
+            digest.counts[b]--;
+            digest.hashes[b] -= hash(name);
+        }
+        return digest;
+    }
+
+    /**
+     * Parses the {@link #toString()} form, returns null if the value is missing or of another version.
+     */
+    public static PartitionDigest parse(String s) {
+        if (s == null || !s.startsWith(VERSION + ":")) {
+            return null;
+        }
+        String[] buckets = s.substring(VERSION.length() + 1).split(",");
+        if (buckets.length != BUCKETS) {
+            return null;
+        }
+        PartitionDigest digest = new PartitionDigest();
+        try {
+            for (int b = 0; b < BUCKETS; b++) {
+                int i = buckets[b].indexOf('/');
+                digest.counts[b] = Long.parseLong(buckets[b].substring(0, i));
+                digest.hashes[b] = Long.parseUnsignedLong(buckets[b].substring(i + 1), 16);
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return digest;
+    }
+
+    public static int bucket(String name) {
+        return (int) ((hash(firstPart(name)) >>> 1) % BUCKETS);
+    }
+
+    /**
+     * The {@code key=value} part of the first partition key, escaped as in the name.
+     */
+    public static String firstPart(String name) {
+        int i = name.indexOf('/');
+        return i < 0 ? name : name.substring(0, i);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        return count;
+    }
+
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Buckets whose partition sets differ from the other digest.
+     */
+    public Set<Integer> mismatches(PartitionDigest other) {
+        Set<Integer> buckets = new TreeSet<>();
+        for (int b = 0; b < BUCKETS; b++) {
+            if (counts[b] != other.counts[b] || hashes[b] != other.hashes[b]) {
+                buckets.add(b);
+            }
+        }
+        return buckets;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(VERSION).append(':');
+        for (int b = 0; b < BUCKETS; b++) {
+            if (b > 0) {
+                sb.append(',');
+            }
+            sb.append(counts[b]).append('/').append(Long.toHexString(hashes[b]));
+        }
+        return sb.toString();
+    }
+
+    // 64-bit FNV-1a with a final mix, String.hashCode collides too easily for a set digest
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+}
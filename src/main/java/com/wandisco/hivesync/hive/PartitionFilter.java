@@ -0,0 +1,118 @@
+package com.wandisco.hivesync.hive;
+
+import com.wandisco.hivesync.common.Wildcard;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Partitions to sync of the tables matching a {@code db.table} wildcard: a metastore filter expression,
+ * e.g. {@code region = 'eu'}, or a window of the last days on a date partition key.
+ * The filter is pushed down to both metastores, partitions outside it are neither listed, created nor dropped.
+ */
+public class PartitionFilter {
+
+    private static final Set<String> QUOTED_TYPES = new HashSet<>(Arrays.asList("string", "varchar", "char", "date"));
+    private static final Set<String> STRING_TYPES = new HashSet<>(Arrays.asList("string", "varchar", "char"));
+    private static final Set<String> INTEGRAL_TYPES = new HashSet<>(Arrays.asList("tinyint", "smallint", "int", "bigint"));
+
+    private final String pattern;
+    private final Wildcard tables;
+    private final String expression;
+    private final String key;
+    private final int days;
+    private final DateTimeFormatter format;
+
+    private PartitionFilter(String pattern, String expression, String key, int days, String format) {
+        this.pattern = pattern;
+        this.tables = Wildcard.compile(pattern);
+        this.expression = expression;
+        this.key = key;
+        this.days = days;
+        this.format = format == null ? null : DateTimeFormatter.ofPattern(format);
+    }
+
+    /**
+     * Parses {@code <db.table wildcard>:<filter expression>}.
+     */
+    public static PartitionFilter expression(String spec) {
+        int i = spec.indexOf(':');
+        if (i <= 0 || i == spec.length() - 1) {
+            throw new IllegalArgumentException("Partition filter must be <db.table wildcard>:<filter>: " + spec);
+        }
+        return new PartitionFilter(spec.substring(0, i), spec.substring(i + 1).trim(), null, 0, null);
+    }
+
+    /**
+     * Parses {@code <db.table wildcard>:<date key>:<days>[:<date format>]}, the date format is {@code yyyy-MM-dd}
+     * by default.
+     */
+    public static PartitionFilter window(String spec) {
+        String[] parts = spec.split(":", 4);
+        if (parts.length < 3 || parts[0].isEmpty() || parts[1].isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Partition window must be <db.table wildcard>:<date key>:<days>[:<date format>]: " + spec);
+        }
+        try {
+            int days = Integer.parseInt(parts[2]);
+            if (days < 1) {
+                throw new IllegalArgumentException("Partition window must be at least 1 day: " + spec);
+            }
+            return new PartitionFilter(parts[0], null, parts[1], days, parts.length == 4 ? parts[3] : "yyyy-MM-dd");
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Partition window days must be a number: " + spec, e);
+        }
+    }
+
+    public boolean matches(TableInfo table) {
+        return tables.matches(table.getDb() + "." + table.getName());
+    }
+
+    /**
+     * The filter expression for the table, a window covers today and the {@code days - 1} days before.
+     */
+    public String getFilter(TableInfo table, LocalDate today) {
+        if (expression != null) {
+            return expression;
+        }
+        FieldSchema partitionKey = table.getTable().getPartitionKeys().stream()
+                .filter(k -> k.getName().equalsIgnoreCase(key))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(
+                        "Table " + table.getDb() + "." + table.getName() + " has no partition key " + key));
+        String from = today.minusDays(days - 1).format(format);
+        String type = partitionKey.getType().replaceAll("\\(.*", "").toLowerCase();
+        return key + " >= " + (QUOTED_TYPES.contains(type) ? "'" + from + "'" : from);
+    }
+
+    /**
+     * A filter expression matching any of the values of a partition key, or null if they can't be written
+     * in one: only string keys with values free of quotes and backslashes, and integral keys, are supported.
+     */
+    public static String anyOf(FieldSchema key, Collection<String> values) {
+        String type = key.getType().replaceAll("\\(.*", "").toLowerCase();
+        boolean string = STRING_TYPES.contains(type);
+        if (!string && !INTEGRAL_TYPES.contains(type)) {
+            return null;
+        }
+        StringBuilder filter = new StringBuilder();
+        for (String value : values) {
+            if (string ? value.indexOf('\'') >= 0 || value.indexOf('\\') >= 0 : !value.matches("-?[0-9]+")) {
+                return null;
+            }
+            filter.append(filter.length() == 0 ? "" : " or ").append(key.getName()).append(" = ")
+                    .append(string ? "'" + value + "'" : value);
+        }
+        return filter.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern + ":" + (expression != null ? expression : key + " last " + days + " days");
+    }
+}
@@ -0,0 +1,229 @@
+package com.wandisco.hivesync.hive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partition names of a table in dictionary-encoded form, for diffing tables with millions of partitions.
+ * <p>
+ * A name {@code k1=v1/k2=v2} is split into its {@code key=value} parts, every part is replaced by its
+ * code in a per-key dictionary and the codes are kept in int columns, one row per partition. Repeated
+ * parts like {@code year=2024} are stored once, membership is an open addressing hash set of row numbers.
+ */
+public class PartitionIndex {
+
+    private final int width;
+    private final Dictionary[] dicts;
+    private int[][] columns;
+    private int size;
+    // row + 1 per slot, 0 if free
+    private int[] slots;
+
+    private PartitionIndex(int width, int capacity) {
+        this.width = width;
+        this.dicts = new Dictionary[width];
+        this.columns = new int[width][Math.max(capacity, 16)];
+        for (int i = 0; i < width; i++) {
+            dicts[i] = new Dictionary();
+        }
+        this.slots = new int[tableSize(capacity)];
+    }
+
+    /**
+     * Builds the index of partition names as returned by the metastore, duplicates are ignored.
+     * All names must have the same number of parts.
+     */
+    public static PartitionIndex of(Collection<String> names) {
+        int width = names.isEmpty() ? 0 : split(names.iterator().next()).length;
+        PartitionIndex index = new PartitionIndex(width, names.size());
+        for (String name : names) {
+            index.add(name);
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String name) {
+        String[] parts = split(name);
+        if (parts.length != width) {
+            return false;
+        }
+        int[] codes = new int[width];
+        for (int i = 0; i < width; i++) {
+            codes[i] = dicts[i].find(parts[i]);
+            if (codes[i] < 0) {
+                return false;
+            }
+        }
+        return find(codes) >= 0;
+    }
+
+    public String name(int row) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(dicts[i].values.get(columns[i][row]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Names of this index not found in the other one, in the order they were added.
+     */
+    public List<String> missingIn(PartitionIndex other) {
+        List<String> missing = new ArrayList<>();
+        if (other.width != width) {
+            for (int row = 0; row < size; row++) {
+                missing.add(name(row));
+            }
+            return missing;
+        }
+        // codes of this index translated to codes of the other one, -1 if the part isn't there
+        int[][] translate = new int[width][];
+        for (int i = 0; i < width; i++) {
+            List<String> values = dicts[i].values;
+            translate[i] = new int[values.size()];
+            for (int code = 0; code < values.size(); code++) {
+                translate[i][code] = other.dicts[i].find(values.get(code));
+            }
+        }
+        int[] codes = new int[width];
+        for (int row = 0; row < size; row++) {
+            boolean found = true;
+            for (int i = 0; i < width && found; i++) {
+                codes[i] = translate[i][columns[i][row]];
+                found = codes[i] >= 0;
+            }
+            if (!found || other.find(codes) < 0) {
+                missing.add(name(row));
+            }
+        }
+        return missing;
+    }
+
+    private void add(String name) {
+        String[] parts = split(name);
+        if (parts.length != width) {
+            throw new IllegalArgumentException("Partition name " + name + " doesn't have " + width + " parts");
+        }
+        int[] codes = new int[width];
+        for (int i = 0; i < width; i++) {
+            codes[i] = dicts[i].add(parts[i]);
+        }
+        if (find(codes) >= 0) {
+            return;
+        }
+        if (width > 0 && size == columns[0].length) {
+            for (int i = 0; i < width; i++) {
+                columns[i] = Arrays.copyOf(columns[i], size * 2);
+            }
+        }
+        for (int i = 0; i < width; i++) {
+            columns[i][size] = codes[i];
+        }
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            insert(size - 1);
+        }
+    }
+
+    private int find(int[] codes) {
+        int mask = slots.length - 1;
+        for (int slot = hash(codes) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (rowEquals(row, codes)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(row) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    private void rehash(int tableSize) {
+        slots = new int[tableSize];
+        for (int row = 0; row < size; row++) {
+            insert(row);
+        }
+    }
+
+    private boolean rowEquals(int row, int[] codes) {
+        for (int i = 0; i < width; i++) {
+            if (columns[i][row] != codes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(int[] codes) {
+        int h = 0;
+        for (int code : codes) {
+            h = h * 31 + code;
+        }
+        return mix(h);
+    }
+
+    private int hash(int row) {
+        int h = 0;
+        for (int i = 0; i < width; i++) {
+            h = h * 31 + columns[i][row];
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int capacity) {
+        int n = 16;
+        while (n < capacity * 2) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static String[] split(String name) {
+        return name.isEmpty() ? new String[0] : name.split("/");
+    }
+
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private int add(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        private int find(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+    }
+}
@@ -2,23 +2,22 @@ package com.wandisco.hivesync.hive;
 
 import org.apache.hadoop.hive.metastore.api.Table;
 
-import java.util.List;
-
 import static com.wandisco.hivesync.common.Tools.getBoolParameter;
 
 public class TableInfo {
 
     private final Table table;
-    private final List<PartitionInfo> partitions;
 
     private final boolean isManaged;
     private final boolean isTransactional;
     private final boolean isPartitioned;
     private final boolean isReplicated;
 
-    public TableInfo(Table table, List<PartitionInfo> partitions) {
+    private Fingerprint fingerprint;
+    private Long partitionCount;
+
+    public TableInfo(Table table) {
         this.table = table;
-        this.partitions = partitions;
         this.isManaged = table.getTableType().equalsIgnoreCase("MANAGED_TABLE");
         this.isTransactional = getBoolParameter(table.getParameters(), "transactional");
         this.isPartitioned = table.getPartitionKeysSize() != 0;
@@ -37,10 +36,6 @@ public class TableInfo {
         return table.getTableName();
     }
 
-    public List<PartitionInfo> getPartitions() {
-        return partitions;
-    }
-
     public boolean isManaged() {
         return isManaged;
     }
@@ -57,6 +52,30 @@ public class TableInfo {
         return isReplicated;
     }
 
+    public long getDdlTime() {
+        String ddlTime = table.getParameters() == null ? null : table.getParameters().get("transient_lastDdlTime");
+        return ddlTime == null ? 0 : Long.parseLong(ddlTime);
+    }
+
+    public Fingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(Fingerprint fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Partition count from the fingerprint or a count call, null if neither was made.
+     */
+    public Long getPartitionCount() {
+        return fingerprint != null ? fingerprint.getPartitionCount() : partitionCount;
+    }
+
+    public void setPartitionCount(long partitionCount) {
+        this.partitionCount = partitionCount;
+    }
+
     @Override
     public String toString() {
         return "Table: " + getTable() + " Managed: " + isManaged + " Transactional:" + isTransactional;
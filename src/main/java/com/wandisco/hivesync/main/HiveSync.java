@@ -1,165 +1,1100 @@
 package com.wandisco.hivesync.main;
 
+import com.wandisco.hivesync.common.ExternalSort;
+import com.wandisco.hivesync.common.FailureReport;
+import com.wandisco.hivesync.common.RunSummary;
 import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.common.Wildcard;
+import com.wandisco.hivesync.common.WorkScheduler;
 import com.wandisco.hivesync.hive.Commands;
 import com.wandisco.hivesync.hive.HMSClient;
+import com.wandisco.hivesync.hive.HMSClientPool;
+import com.wandisco.hivesync.hive.MetastoreMetrics;
+import com.wandisco.hivesync.hive.PartitionDigest;
+import com.wandisco.hivesync.hive.PartitionFilter;
+import com.wandisco.hivesync.hive.PartitionIndex;
 import com.wandisco.hivesync.hive.PartitionInfo;
 import com.wandisco.hivesync.hive.TableInfo;
 import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
 import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.utils.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.thrift.TException;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.wandisco.hivesync.common.Tools.awaitTermination;
-
 public class HiveSync {
 
     private static final Logger LOG = LogManager.getLogger(HiveSync.class);
 
+    private static final int PAGE_SIZE = 1000;
+    // partition names sorted in memory per spilled run file
+    private static final int SPILL_RUN_SIZE = 200_000;
+    // listings per dst table above which all names are listed instead
+    private static final int MAX_DIGEST_LISTINGS = 64;
+    // first key values per filtered listing of changed digest buckets
+    private static final int DIGEST_FILTER_VALUES = 100;
+
+    // a page per default worker thread
+    private static int maxInFlight = 16 * PAGE_SIZE;
+    private static Semaphore inFlight = new Semaphore(maxInFlight);
+    private static long spillThreshold = 2_000_000;
+    private static String spillDir = System.getProperty("java.io.tmpdir");
+    private static Path spillRunDir;
+
     private final HMSClient srcHms;
-    private final HMSClient dstHms;
-    private final List<String> dbWildcards;
-    private final List<String> tblWildcards;
+    private final List<Destination> destinations = new ArrayList<>();
+    // dst metastores which failed since their last full sync, skipped by syncTables
+    private final Set<Destination> lagging = ConcurrentHashMap.newKeySet();
+    private final Wildcard dbWildcards;
+    private final Wildcard tblWildcards;
+    private boolean skipUnchanged;
+    private boolean replicaDigest = true;
+    private boolean largestFirst = true;
 
     public HiveSync(String srcMeta, String dstMeta, boolean metaSasl,
                     List<String> databases, List<String> tables) throws MetaException {
+        this(srcMeta, Collections.singletonList(dstMeta), metaSasl, databases, tables);
+    }
+
+    /**
+     * Syncs the src metastore with every dst metastore. The src is listed once per run and diffed with each
+     * of them, writes go to all of them in parallel, and a failing one doesn't stop the others.
+     * With several dst metastores the sync is one way: the src is never written, tables and partitions only
+     * in a dst are dropped if they were replicated from the src, and kept otherwise.
+     */
+    public HiveSync(String srcMeta, List<String> dstMetas, boolean metaSasl,
+                    List<String> databases, List<String> tables) throws MetaException {
         srcHms = Tools.createNewMetaConnection(srcMeta, metaSasl);
-        dstHms = Tools.createNewMetaConnection(dstMeta, metaSasl);
-        this.dbWildcards = databases;
-        this.tblWildcards = tables;
+        for (String dstMeta : new LinkedHashSet<>(dstMetas)) {
+            destinations.add(new Destination(dstMeta, metaSasl));
+        }
+        this.dbWildcards = Wildcard.compile(databases);
+        this.tblWildcards = Wildcard.compile(tables);
+    }
+
+    /**
+     * Limits the number of partitions fetched but not yet written, over all tables. Workers run a page each,
+     * the budget holds back the pages run by threads waiting for their tasks and queued by on-disk diffs.
+     */
+    public static void setMaxInFlightPartitions(int partitions) {
+        maxInFlight = Math.max(partitions, PAGE_SIZE);
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Diffs tables with more partitions than {@code threshold} on one side through sorted files in {@code dir}.
+     */
+    public static synchronized void setSpill(long threshold, String dir) {
+        spillThreshold = threshold;
+        spillDir = dir;
+        spillRunDir = null;
+    }
+
+    /**
+     * Runs no bigger than the threshold keep the heap within what it allows for a listing.
+     */
+    private static int spillRunSize() {
+        return (int) Math.max(1, Math.min(SPILL_RUN_SIZE, spillThreshold));
+    }
+
+    private static synchronized Path spillRunDir() throws IOException {
+        if (spillRunDir == null) {
+            spillRunDir = ExternalSort.createRunDirectory(Paths.get(spillDir));
+        }
+        return spillRunDir;
+    }
+
+    /**
+     * Skip partition listing of tables whose fingerprints on both sides didn't change since they were synced.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Keep a digest of the synced partitions in the dst table parameters and list only the changed
+     * parts of dst tables on the next sync.
+     */
+    public void setReplicaDigest(boolean replicaDigest) {
+        this.replicaDigest = replicaDigest;
+    }
+
+    /**
+     * Start the tables with the most partitions first, so the biggest one doesn't start last and
+     * hold up the run. Costs a partition count call per partitioned table, none extra if the run tracks
+     * fingerprints anyway.
+     * Tables of all databases are listed before the first one starts, with or without it.
+     */
+    public void setLargestFirst(boolean largestFirst) {
+        this.largestFirst = largestFirst;
+    }
+
+    /**
+     * Keeps the sync state in the given directory, in a subdirectory per dst metastore if there are several.
+     * By default it is kept in memory.
+     */
+    public void setStateDir(String dir) throws IOException {
+        for (Destination d : destinations) {
+            d.state = new StateStore(twoWay() ? dir
+                    : Paths.get(dir, d.uri.replaceAll("[^A-Za-z0-9.-]", "_")).toString());
+        }
     }
 
     public void execute() throws TException {
-        HashSet<String> dbList1 = new HashSet<>();
-        for (String database : dbWildcards) {
-            dbList1.addAll(Commands.getDatabases(srcHms, database));
+        execute(destinations);
+    }
+
+    /**
+     * Whether a dst metastore failed since its last full sync. Its changes since then may be missing.
+     */
+    public boolean hasLagging() {
+        return !lagging.isEmpty();
+    }
+
+    /**
+     * URIs of the dst metastores which failed since their last full sync.
+     */
+    public List<String> getLagging() {
+        return destinations.stream().filter(lagging::contains).map(d -> d.uri).collect(Collectors.toList());
+    }
+
+    /**
+     * Marks the dst metastores with the given URIs as failed since their last full sync, e.g. by a previous process.
+     */
+    public void setLagging(Collection<String> uris) {
+        for (Destination d : destinations) {
+            if (uris.contains(d.uri)) {
+                lagging.add(d);
+            }
+        }
+    }
+
+    /**
+     * Runs a full sync with the dst metastores which failed since their last full sync.
+     */
+    public void catchUp() throws TException {
+        List<Destination> dsts = new ArrayList<>(destinations);
+        dsts.retainAll(lagging);
+        if (!dsts.isEmpty()) {
+            LOG.info("Catching up with destinations: {}",
+                    dsts.stream().map(d -> d.uri).collect(Collectors.joining(", ")));
+            execute(dsts);
         }
-        HashSet<String> dbList2 = new HashSet<>();
-        for (String database : dbWildcards) {
-            dbList2.addAll(Commands.getDatabases(dstHms, database));
+    }
+
+    /**
+     * A dst metastore is lagging after the run if it failed, and caught up otherwise.
+     */
+    private void execute(List<Destination> dsts) throws TException {
+        RunSummary.reset();
+        FailureReport.reset();
+        List<String> dbList = Commands.getDatabases(srcHms, dbWildcards);
+        lagging.removeAll(dsts);
+        boolean done = false;
+        try {
+            execute(dbList, getDestinationDatabases(dsts));
+            done = true;
+        } finally {
+            if (!done) {
+                lagging.addAll(dsts);
+            }
         }
-        ExecutorService pool = Executors.newFixedThreadPool(8);
-        for (String db : dbList1) {
+        RunSummary.log();
+        FailureReport.log();
+        HMSClientPool.logAllStats();
+        MetastoreMetrics.logAll();
+        MetastoreMetrics.writeFile();
+    }
+
+    private void execute(List<String> dbList, Map<Destination, Set<String>> dstDbs) throws TException {
+        for (Destination d : dstDbs.keySet()) {
+            d.state.startRun();
+        }
+        WorkScheduler scheduler = WorkScheduler.get();
+        // all databases are listed first, then their tables start costliest first across all of them
+        List<FutureTask<Map<Callable<Void>, Long>>> listings = new ArrayList<>();
+        for (String db : dbList) {
             LOG.info("Syncing database: {}", db);
-            if (!dbList2.contains(db)) {
-                Database db1 = srcHms.getDatabase(db);
-                createDatabase(dstHms, db1);
+            listings.add(scheduler.submit(db, () -> listDatabase(db, dstDbs)));
+        }
+        List<Map<Callable<Void>, Long>> listed = scheduler.awaitAll(listings);
+        Map<String, Map<Callable<Void>, Long>> tasks = new LinkedHashMap<>();
+        for (int i = 0; i < dbList.size(); i++) {
+            tasks.put(dbList.get(i), reported(dbList.get(i), listed.get(i)));
+        }
+        scheduler.invokeAllGroups(tasks);
+        for (Destination d : dstDbs.keySet()) {
+            d.state.endRun();
+        }
+    }
+
+    /**
+     * Logs the work {@link #execute()} would do per database and dst metastore, see {@link SyncEstimate}.
+     */
+    public void estimate() throws TException {
+        List<String> srcDbs = Commands.getDatabases(srcHms, dbWildcards);
+        Map<HMSClient, Set<String>> dstDbs = new LinkedHashMap<>();
+        for (Destination d : destinations) {
+            dstDbs.put(d.hms(), new HashSet<>(Commands.getDatabases(d.hms(), dbWildcards)));
+        }
+        new SyncEstimate(this, srcHms, dstDbs, spillThreshold).run(srcDbs);
+        HMSClientPool.logAllStats();
+    }
+
+    /**
+     * Databases of the dst metastores which could be listed, the others are reported and left out of the run.
+     * Fails only if none could be listed.
+     */
+    private Map<Destination, Set<String>> getDestinationDatabases(List<Destination> dsts) throws TException {
+        Map<Destination, Set<String>> dbs = new LinkedHashMap<>();
+        TException failure = null;
+        for (Destination d : dsts) {
+            try {
+                dbs.put(d, new HashSet<>(Commands.getDatabases(d.hms(), dbWildcards)));
+            } catch (TException e) {
+                LOG.error("Error listing databases: {}", d.uri, e);
+                FailureReport.add(d.uri, "list databases", e);
+                lagging.add(d);
+                failure = failure == null ? e : failure;
             }
-            pool.submit(() -> syncDatabase(db));
         }
-        awaitTermination(pool, "Waiting for syncing databases");
+        if (dbs.isEmpty()) {
+            throw failure;
+        }
+        return dbs;
     }
 
     private void createDatabase(HMSClient hms, Database db) throws TException {
-        LOG.info("Create database: {}", db.getName());
+        LOG.info("Create database: {}{}", db.getName(), where(hms));
         Commands.createDatabase(hms, db);
     }
 
-    private void syncDatabase(String database) {
-        LOG.trace("Collect table information: {}", database);
-        try (HMSClient srcHms = this.srcHms.createClient();
-             HMSClient dstHms = this.dstHms.createClient()) {
-            Map<String, TableInfo> srcTables = getTablesMap(Commands.getTables(srcHms, database));
-            Map<String, TableInfo> dstTables = getTablesMap(Commands.getTables(dstHms, database));
-            // update partitions for both tables
-            Set<String> bothTables = new HashSet<>(srcTables.keySet());
-            bothTables.retainAll(dstTables.keySet());
-            if (!bothTables.isEmpty()) {
-                syncPartitions(srcHms, dstHms, srcTables, dstTables, bothTables);
-            }
-            // create new (and remove old) tables from src in dst
-            if (srcTables.size() != bothTables.size()) {
-                syncTables(srcHms, dstHms, srcTables, bothTables);
-            }
-            // create new (and remove old) tables from dst in src
-            if (dstTables.size() != bothTables.size()) {
-                syncTables(dstHms, srcHms, dstTables, bothTables);
-            }
+    /**
+     * Table tasks of a database with their costs, none if it couldn't be listed.
+     */
+    private Map<Callable<Void>, Long> listDatabase(String database, Map<Destination, Set<String>> dstDbs) {
+        try {
+            // failures of a single dst are reported already
+            return tableTasks(database, null, dstDbs);
         } catch (Exception e) {
             LOG.error("Error syncing database: {}", database, e);
+            FailureReport.add(database, "sync database", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * The tasks, reporting their failures instead of throwing them.
+     */
+    private static Map<Callable<Void>, Long> reported(String database, Map<Callable<Void>, Long> tasks) {
+        Map<Callable<Void>, Long> reported = new LinkedHashMap<>();
+        for (Map.Entry<Callable<Void>, Long> e : tasks.entrySet()) {
+            reported.put(() -> {
+                try {
+                    return e.getKey().call();
+                } catch (Exception ex) {
+                    LOG.error("Error syncing database: {}", database, ex);
+                    FailureReport.add(database, "sync database", ex);
+                    return null;
+                }
+            }, e.getValue());
         }
+        return reported;
     }
 
-    private void syncTables(HMSClient srcHms, HMSClient dstHms,
-                            Map<String, TableInfo> tables,
-                            Collection<String> bothTables) throws TException {
-        List<TableInfo> newTables = new ArrayList<>();
-        List<TableInfo> delTables = new ArrayList<>();
-        for (Map.Entry<String, TableInfo> e : tables.entrySet()) {
-            if (!bothTables.contains(e.getKey())) {
-                if (e.getValue().isReplicated()) {
-                    delTables.add(e.getValue());
+    /**
+     * Sync the given tables of a database, or all of its tables when {@code tables} is null.
+     * Tables missing on one side are created or dropped exactly as in a full {@link #execute()} pass.
+     * Lagging dst metastores are skipped, they are synced by {@link #catchUp()}. A dst failing here is reported
+     * and becomes lagging, this throws only if the src couldn't be read.
+     */
+    public void syncTables(String database, Collection<String> tables) throws TException {
+        Map<Destination, Set<String>> dstDbs = new LinkedHashMap<>();
+        for (Destination d : destinations) {
+            if (!lagging.contains(d)) {
+                dstDbs.put(d, null);
+            }
+        }
+        if (dstDbs.isEmpty()) {
+            LOG.debug("All destinations are lagging, skipping tables: {} {}", database, tables);
+            return;
+        }
+        WorkScheduler.get().invokeAll(database, tableTasks(database, tables, dstDbs));
+    }
+
+    /**
+     * Lists the tables and returns a task per table with its estimated cost. A dst whose tables couldn't be
+     * listed becomes lagging, the tasks sync the database with the other ones.
+     * Missing databases are created in the given dst metastores, looking up their databases if not given.
+     */
+    private Map<Callable<Void>, Long> tableTasks(String database, Collection<String> tables,
+                                                 Map<Destination, Set<String>> dstDbs) throws TException {
+        LOG.trace("Collect table information: {}", database);
+        Map<String, TableInfo> srcTables;
+        try (HMSClient srcHms = this.srcHms.createClient()) {
+            srcTables = getTablesMap(listTables(srcHms, database, tables));
+        }
+        Map<Destination, Map<String, TableInfo>> dstTables = new LinkedHashMap<>();
+        for (Map.Entry<Destination, Set<String>> dst : dstDbs.entrySet()) {
+            Destination d = dst.getKey();
+            try (HMSClient dstHms = d.hms().createClient()) {
+                boolean exists = dst.getValue() != null
+                        ? dst.getValue().contains(database)
+                        : tables == null || dstHms.getAllDatabases().contains(database);
+                if (!exists) {
+                    try (HMSClient srcHms = this.srcHms.createClient()) {
+                        createDatabase(dstHms, srcHms.getDatabase(database));
+                    }
+                }
+                dstTables.put(d, getTablesMap(listTables(dstHms, database, tables)));
+            } catch (TException e) {
+                LOG.error("Error syncing database: {}{}", database, where(d), e);
+                FailureReport.add(database, "sync database" + where(d), e);
+                lagging.add(d);
+            }
+        }
+        if (dstTables.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (largestFirst) {
+            estimateCosts(database, srcTables, dstTables);
+        }
+        // every src table is synced with all dst metastores by an independent task, with its estimated cost
+        Map<Callable<Void>, Long> tasks = new LinkedHashMap<>();
+        for (TableInfo srcTable : srcTables.values()) {
+            // null for dst metastores missing the table
+            Map<Destination, TableInfo> replicas = new LinkedHashMap<>();
+            for (Map.Entry<Destination, Map<String, TableInfo>> e : dstTables.entrySet()) {
+                TableInfo dstTable = e.getValue().get(srcTable.getName());
+                if (dstTable == null || srcTable.isPartitioned()) {
+                    replicas.put(e.getKey(), dstTable);
+                }
+            }
+            if (!replicas.isEmpty()) {
+                tasks.put(() -> {
+                    syncTable(srcTable, replicas);
+                    return null;
+                }, cost(srcTable));
+            }
+        }
+        // create new (and remove old) tables from dst in src
+        for (Map.Entry<Destination, Map<String, TableInfo>> e : dstTables.entrySet()) {
+            Destination d = e.getKey();
+            HMSClient dstHms = d.hms();
+            for (TableInfo ti : e.getValue().values()) {
+                if (!srcTables.containsKey(ti.getName())) {
+                    tasks.put(() -> {
+                        try {
+                            if (!syncMissingTable(dstHms, srcHms, ti, new PartitionNames(dstHms, ti),
+                                    true, twoWay(), where(dstHms))) {
+                                writesFailed(d, ti.getDb());
+                            }
+                        } catch (TException ex) {
+                            tableFailed(ti, where(dstHms), ex);
+                            lagging.add(d);
+                        }
+                        return null;
+                    }, ti.isReplicated() ? 1 : cost(ti));
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private static Collection<TableInfo> listTables(HMSClient hms, String database,
+                                                    Collection<String> tables) throws TException {
+        return tables == null ? Commands.getTables(hms, database) : Commands.getTables(hms, database, tables);
+    }
+
+    public boolean matchDatabase(String database) {
+        return dbWildcards.matches(database);
+    }
+
+    public boolean matchTable(String table) {
+        return tblWildcards.matches(table);
+    }
+
+    /**
+     * Compacts the state journals of the dst metastores, which only runs started by {@link #execute()} do.
+     */
+    public void compactState() {
+        for (Destination d : destinations) {
+            d.state.compact();
+        }
+    }
+
+    public void reconnect() throws MetaException {
+        srcHms.reconnect();
+        for (Destination d : destinations) {
+            try {
+                d.reconnect();
+            } catch (MetaException e) {
+                LOG.error("Error reconnecting to metastore: {}", d.uri, e);
+                lagging.add(d);
+            }
+        }
+    }
+
+    /**
+     * The src is written back to only if there is a single dst.
+     */
+    private boolean twoWay() {
+        return destinations.size() == 1;
+    }
+
+    /**
+     * Names the dst metastore in logs and failures if there are several.
+     */
+    private String where(HMSClient dstHms) {
+        return twoWay() ? "" : " in " + dstHms.getUri();
+    }
+
+    private String where(Destination d) {
+        return twoWay() ? "" : " in " + d.uri;
+    }
+
+    private static void tableFailed(TableInfo table, String where, TException e) {
+        LOG.error("Error syncing table: {}.{}{}", table.getDb(), table.getName(), where, e);
+        FailureReport.add(table.getDb() + "." + table.getName(), "sync table" + where, e);
+    }
+
+    /**
+     * A dst whose partition writes failed is lagging if it doesn't answer any more. Partitions it rejects
+     * are reported and don't make it lagging.
+     */
+    private void writesFailed(Destination d, String database) {
+        try (HMSClient dstHms = d.hms().createClient()) {
+            dstHms.getDatabase(database);
+        } catch (TException e) {
+            LOG.warn("Destination not answering after failed writes: {}", d.uri, e);
+            lagging.add(d);
+        }
+    }
+
+    /**
+     * Counts the partitions of the partitioned tables whose partitions would be copied, they give the task costs.
+     * Src tables get their whole fingerprint instead if the run tracks fingerprints, it is needed anyway.
+     * Runs the count calls in parallel.
+     */
+    private void estimateCosts(String database, Map<String, TableInfo> srcTables,
+                               Map<Destination, Map<String, TableInfo>> dstTables) throws TException {
+        Map<TableInfo, HMSClient> tables = new LinkedHashMap<>();
+        for (TableInfo ti : srcTables.values()) {
+            // replicated tables missing in the dst are dropped in a two way sync
+            if (ti.isPartitioned() && (!ti.isReplicated() || !twoWay()
+                    || dstTables.values().stream().anyMatch(t -> t.containsKey(ti.getName())))) {
+                tables.put(ti, srcHms);
+            }
+        }
+        if (twoWay()) {
+            for (Map.Entry<Destination, Map<String, TableInfo>> e : dstTables.entrySet()) {
+                for (TableInfo ti : e.getValue().values()) {
+                    if (ti.isPartitioned() && !ti.isReplicated() && !srcTables.containsKey(ti.getName())) {
+                        tables.put(ti, e.getKey().hms());
+                    }
+                }
+            }
+        }
+        boolean track = skipUnchanged || dstTables.keySet().stream().anyMatch(d -> d.state.isPersistent());
+        List<Callable<Void>> counts = new ArrayList<>();
+        for (Map.Entry<TableInfo, HMSClient> e : tables.entrySet()) {
+            TableInfo ti = e.getKey();
+            counts.add(() -> {
+                if (track && e.getValue() == srcHms) {
+                    ti.setFingerprint(Commands.getFingerprint(srcHms, ti));
                 } else {
-                    newTables.add(e.getValue());
+                    ti.setPartitionCount(Commands.getPartitionCount(e.getValue(), ti));
                 }
+                return null;
+            });
+        }
+        WorkScheduler.get().invokeAll(database, counts);
+    }
+
+    /**
+     * Estimated work of syncing a table: its partition count if known, tables without partitions cost 1.
+     */
+    private static long cost(TableInfo table) {
+        Long count = table.getPartitionCount();
+        return 1 + (count == null ? 0 : count);
+    }
+
+    /**
+     * Syncs a src table with the given dst metastores in parallel: it is created in the ones missing it, or
+     * its partitions are synced. Its partition names are listed once, by the first dst needing them.
+     * Failures are reported per dst.
+     */
+    private void syncTable(TableInfo srcTable, Map<Destination, TableInfo> replicas) throws TException {
+        if (srcTable.isPartitioned() && srcTable.getFingerprint() == null
+                && (skipUnchanged || replicas.keySet().stream().anyMatch(d -> d.state.isPersistent()))) {
+            srcTable.setFingerprint(Commands.getFingerprint(srcHms, srcTable));
+        }
+        try (PartitionNames srcNames = new PartitionNames(srcHms, srcTable)) {
+            syncTable(srcTable, replicas, srcNames);
+        } catch (IOException e) {
+            LOG.warn("Error deleting spilled partition names: {}.{}", srcTable.getDb(), srcTable.getName(), e);
+        }
+    }
+
+    private void syncTable(TableInfo srcTable, Map<Destination, TableInfo> replicas,
+                           PartitionNames srcNames) throws TException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<Destination, TableInfo> e : replicas.entrySet()) {
+            Destination d = e.getKey();
+            TableInfo dstTable = e.getValue();
+            tasks.add(() -> {
+                try {
+                    boolean synced;
+                    if (dstTable == null) {
+                        // create new (and remove old) tables from src in dst
+                        synced = syncMissingTable(srcHms, d.hms(), srcTable, srcNames, twoWay(), true, where(d));
+                    } else {
+                        LOG.info("Update partitions of existing table: {}.{}{}",
+                                srcTable.getDb(), srcTable.getName(), where(d));
+                        synced = syncTablePartitions(d, srcTable, dstTable, srcNames);
+                    }
+                    if (!synced) {
+                        writesFailed(d, srcTable.getDb());
+                    }
+                } catch (TException ex) {
+                    tableFailed(srcTable, where(d), ex);
+                    lagging.add(d);
+                }
+                return null;
+            });
+        }
+        WorkScheduler.get().invokeAll(srcTable.getDb(), tasks);
+    }
+
+    /**
+     * Syncs a table missing in {@code toHms}: it is dropped if it was replicated from there before and
+     * {@code dropReplicated} is set, otherwise created with all its partitions, or kept if {@code create} isn't set.
+     * Returns false if any partition failed to write.
+     */
+    private boolean syncMissingTable(HMSClient fromHms, HMSClient toHms, TableInfo ti, PartitionNames names,
+                                  boolean dropReplicated, boolean create, String where) throws TException {
+        if (dropReplicated && ti.isReplicated()) {
+            LOG.info("Drop replicated table: {}.{}{}", ti.getDb(), ti.getName(), where);
+            Commands.dropTable(fromHms, ti);
+        } else if (create) {
+            LOG.info("Create non-existing table: {}.{}{}", ti.getDb(), ti.getName(), where);
+            Commands.createTable(toHms, ti);
+            if (ti.isPartitioned()) {
+                return copyPartitions(fromHms, toHms, ti, names.get(), false, true, null, null, null, null);
+            }
+        } else {
+            LOG.debug("Keeping table only in destination: {}.{}{}", ti.getDb(), ti.getName(), where);
+            RunSummary.add("Tables only in destination kept", 1);
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if any partition failed to write.
+     */
+    private boolean syncTablePartitions(Destination d, TableInfo srcTable, TableInfo dstTable,
+                                     PartitionNames source) throws TException {
+        HMSClient dstHms = d.hms();
+        StateStore state = d.state;
+        String key = srcTable.getDb() + "." + srcTable.getName();
+        boolean track = skipUnchanged || state.isPersistent();
+        if (track) {
+            // estimated along with the task costs if the tables start largest first
+            if (srcTable.getFingerprint() == null) {
+                srcTable.setFingerprint(Commands.getFingerprint(srcHms, srcTable));
+            }
+            dstTable.setFingerprint(Commands.getFingerprint(dstHms, dstTable));
+            // tables already synced by an interrupted run are skipped as well
+            if ((skipUnchanged || state.isResumed(key))
+                    && state.isUnchanged(key, srcTable.getFingerprint(), dstTable.getFingerprint())) {
+                LOG.debug("Skipping unchanged table: {}{}", key, where(dstHms));
+                RunSummary.add("Tables skipped as unchanged", 1);
+                return true;
+            }
+        }
+        List<String> srcOnly;
+        List<String> dstOnly;
+        PartitionDigest srcDigest = null;
+        StateStore.TablePlan plan = state.getPlan(key);
+        if (plan != null && plan.matches(srcTable.getFingerprint(), dstTable.getFingerprint())) {
+            // nothing but the journaled pages changed the table since the plan was made
+            LOG.info("Resuming partition sync: {}{}", key, where(dstHms));
+            RunSummary.add("Tables resumed from journal", 1);
+            srcOnly = plan.getNames(StateStore.SRC);
+            dstOnly = plan.getNames(StateStore.DST);
+        } else {
+            // diff by names only, full partitions are fetched for the differences
+            List<String> dstNames = null;
+            if (!source.isLarge()) {
+                srcDigest = source.digest();
+                dstNames = getReplicaNames(dstHms, dstTable, source.get(), srcDigest);
+            }
+            if (dstNames == null || dstNames.size() > spillThreshold) {
+                boolean synced = spillDiff(dstHms, srcTable, dstTable, source, dstNames);
+                updateDigest(dstHms, dstTable, null);
+                tableSynced(dstHms, state, key, srcTable, dstTable, track && synced, true);
+                return synced;
+            }
+            PartitionIndex srcParts = PartitionIndex.of(source.get());
+            PartitionIndex dstParts = PartitionIndex.of(dstNames);
+            srcOnly = srcParts.missingIn(dstParts);
+            dstOnly = dstParts.missingIn(srcParts);
+            if (state.isPersistent() && (!srcOnly.isEmpty() || !dstOnly.isEmpty())) {
+                state.planTable(key, srcTable.getFingerprint(), dstTable.getFingerprint(), srcOnly, dstOnly);
             }
         }
-        for (TableInfo ti : newTables) {
-            LOG.info("Create non-existing table: {}.{}", ti.getDb(), ti.getName());
-            Commands.createTable(dstHms, ti);
-        }
-        for (TableInfo ti : delTables) {
-            LOG.info("Drop replicated table: {}.{}", ti.getDb(), ti.getName());
-            Commands.dropTable(srcHms, ti);
-        }
-    }
-
-    private void syncPartitions(HMSClient srcHms, HMSClient dstHms,
-                                Map<String, TableInfo> srcTables, Map<String, TableInfo> dstTables,
-                                Collection<String> bothTables) {
-        for (String table : bothTables) {
-            TableInfo srcTable = srcTables.get(table);
-            if (srcTable.isPartitioned()) {
-                LOG.info("Update partitions of existing table: {}.{}", srcTable.getDb(), srcTable.getName());
-                TableInfo dstTable = dstTables.get(table);
-                Map<String, PartitionInfo> srcParts = getPartitionsMap(srcTable);
-                Map<String, PartitionInfo> dstParts = getPartitionsMap(dstTable);
-                // update partitions for both tables
-                Set<String> bothParts = new HashSet<>(srcParts.keySet());
-                bothParts.retainAll(dstParts.keySet());
-                // create new partitions from src in dst
-                if (srcParts.size() != bothParts.size()) {
-                    syncTablePartitions(srcHms, dstHms, srcTable, srcParts, bothParts);
+        // create new partitions from src in dst
+        List<String> dropped = Collections.synchronizedList(new ArrayList<>());
+        boolean synced = copyPartitions(srcHms, dstHms, srcTable, srcOnly, twoWay(), true,
+                state, key, StateStore.SRC, dropped);
+        // create new partitions from dst in src
+        synced &= copyPartitions(dstHms, srcHms, dstTable, dstOnly, true, twoWay(),
+                state, key, StateStore.DST, null);
+        // dst now has exactly the src names, less the replicated ones dropped from src,
+        // unless names were copied back from it
+        updateDigest(dstHms, dstTable, synced && dstOnly.isEmpty() && srcDigest != null
+                ? srcDigest.without(dropped) : null);
+        tableSynced(dstHms, state, key, srcTable, dstTable, track && synced, !srcOnly.isEmpty() || !dstOnly.isEmpty());
+        return synced;
+    }
+
+    private void tableSynced(HMSClient dstHms, StateStore state, String key, TableInfo srcTable, TableInfo dstTable,
+                             boolean track, boolean changed) throws TException {
+        if (track) {
+            if (changed) {
+                // the src is shared with other dst metastores if it isn't written
+                if (twoWay()) {
+                    srcTable.setFingerprint(Commands.getFingerprint(srcHms, srcTable));
                 }
-                // create new partitions from dst in src
-                if (dstParts.size() != bothParts.size()) {
-                    syncTablePartitions(dstHms, srcHms, dstTable, dstParts, bothParts);
+                dstTable.setFingerprint(Commands.getFingerprint(dstHms, dstTable));
+            }
+            state.tableDone(key, srcTable.getFingerprint(), dstTable.getFingerprint());
+        }
+    }
+
+    /**
+     * Partition names of the dst table. If the digest stored on it by the last sync still matches its partition
+     * count, names of the buckets whose src digest matches it are taken from the src names, and only the other
+     * buckets are listed, by filters on the src first key values in them, {@value #DIGEST_FILTER_VALUES} per call,
+     * or by partial specs if the first key values can't be filtered on. If that doesn't account for all
+     * dst partitions of a bucket, or would take more than {@value #MAX_DIGEST_LISTINGS} calls, all names are listed.
+     */
+    private List<String> getReplicaNames(HMSClient dstHms, TableInfo dstTable,
+                                         List<String> srcNames, PartitionDigest srcDigest) throws TException {
+        Map<String, String> params = dstTable.getTable().getParameters();
+        PartitionDigest stored = useDigest(dstTable) && params != null
+                ? PartitionDigest.parse(params.get(PartitionDigest.PARAMETER)) : null;
+        if (stored == null) {
+            return Commands.getPartitionNames(dstHms, dstTable);
+        }
+        long dstCount = dstTable.getPartitionCount() != null
+                ? dstTable.getPartitionCount() : Commands.getPartitionCount(dstHms, dstTable);
+        if (dstCount != stored.getCount()) {
+            // changed by someone else since the last sync
+            RunSummary.add("Replica digests outdated", 1);
+            return Commands.getPartitionNames(dstHms, dstTable);
+        }
+        Set<Integer> mismatches = srcDigest.mismatches(stored);
+        if (mismatches.isEmpty()) {
+            RunSummary.add("Replica listings skipped by digest", 1);
+            return srcNames;
+        }
+        List<String> names = new ArrayList<>(srcNames.size());
+        Set<String> firstParts = new LinkedHashSet<>();
+        for (String name : srcNames) {
+            if (mismatches.contains(PartitionDigest.bucket(name))) {
+                firstParts.add(PartitionDigest.firstPart(name));
+            } else {
+                names.add(name);
+            }
+        }
+        List<String> values = new ArrayList<>(firstParts.size());
+        for (String part : firstParts) {
+            values.add(FileUtils.unescapePathName(part.substring(part.indexOf('=') + 1)));
+        }
+        List<String> filters = digestFilters(dstTable.getTable().getPartitionKeys().get(0), values);
+        if ((filters != null ? filters.size() : values.size()) > MAX_DIGEST_LISTINGS) {
+            RunSummary.add("Replica digests listed in full, too many changed values", 1);
+            return Commands.getPartitionNames(dstHms, dstTable);
+        }
+        List<String> listed = new ArrayList<>();
+        if (filters != null) {
+            for (String filter : filters) {
+                listed.addAll(Commands.getPartitionNamesByFilter(dstHms, dstTable, filter));
+            }
+        } else {
+            for (String value : values) {
+                listed.addAll(Commands.getPartitionNames(dstHms, dstTable, Collections.singletonList(value)));
+            }
+        }
+        Map<Integer, Long> counts = new HashMap<>();
+        for (String name : listed) {
+            counts.merge(PartitionDigest.bucket(name), 1L, Long::sum);
+        }
+        for (int bucket : mismatches) {
+            if (counts.getOrDefault(bucket, 0L) != stored.getCount(bucket)) {
+                // dst has first key values src doesn't
+                RunSummary.add("Replica digests listed in full, new values in dst", 1);
+                return Commands.getPartitionNames(dstHms, dstTable);
+            }
+        }
+        names.addAll(listed);
+        RunSummary.add("Replica buckets listed by digest", mismatches.size());
+        return names;
+    }
+
+    /**
+     * Filters on the given first key values, {@value #DIGEST_FILTER_VALUES} values each, or null if they
+     * can't be filtered on.
+     */
+    private static List<String> digestFilters(FieldSchema firstKey, List<String> values) {
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += DIGEST_FILTER_VALUES) {
+            String filter = PartitionFilter.anyOf(firstKey,
+                    values.subList(i, Math.min(values.size(), i + DIGEST_FILTER_VALUES)));
+            if (filter == null) {
+                return null;
+            }
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    /**
+     * The digest covers all partitions, filtered syncs don't use it.
+     */
+    private boolean useDigest(TableInfo table) {
+        return replicaDigest && !Commands.isFiltered(table);
+    }
+
+    /**
+     * Stores the digest in the dst table parameters if it changed, or removes a stored one if it is null.
+     * A filtered sync leaves the digest alone: it only brings dst names closer to src ones, so the buckets it
+     * changes differ between the src and the stored digest, and the next full sync lists them anyway.
+     */
+    private void updateDigest(HMSClient dstHms, TableInfo dstTable, PartitionDigest digest) {
+        if (!useDigest(dstTable)) {
+            return;
+        }
+        Map<String, String> params = dstTable.getTable().getParameters();
+        String stored = params == null ? null : params.get(PartitionDigest.PARAMETER);
+        String value = digest == null ? null : digest.toString();
+        if (Objects.equals(stored, value)) {
+            return;
+        }
+        try {
+            Commands.setTableParameter(dstHms, dstTable, PartitionDigest.PARAMETER, value);
+        } catch (TException e) {
+            // the next sync lists the table again
+            LOG.warn("Error storing partition digest: {}.{}", dstTable.getDb(), dstTable.getName(), e);
+        }
+    }
+
+    /**
+     * Diffs tables with more than {@code spillThreshold} partitions on one side: names of both sides are
+     * spilled to sorted run files and merge-joined, and the differences are copied page by page as the
+     * merge finds them. Heap use is bounded by one side's listing and the pages in flight: the src names are
+     * spilled first, and the dst names are listed once they are, unless already given, and dropped as soon
+     * as they are spilled. With several dst metastores the spilled src names are shared by all of them, and
+     * src names over the threshold are not kept in memory meanwhile. Src names under it are, for the other
+     * dst metastores to diff in memory, on top of the listing of a dst over it.
+     * The diff isn't journaled, a resumed run diffs the table again.
+     */
+    private boolean spillDiff(HMSClient dstHms, TableInfo srcTable, TableInfo dstTable,
+                              PartitionNames source, List<String> dstNames) throws TException {
+        LOG.info("Diffing partitions on disk: {}.{}{}", srcTable.getDb(), srcTable.getName(), where(dstHms));
+        RunSummary.add("Tables diffed on disk", 1);
+        try (ExternalSort dstSorted = new ExternalSort(spillRunDir(), spillRunSize())) {
+            ExternalSort srcSorted = source.sorted();
+            if (twoWay()) {
+                // the only dst, the src names aren't needed any more
+                source.release();
+            }
+            if (dstNames == null) {
+                dstNames = Commands.getPartitionNames(dstHms, dstTable);
+            }
+            dstSorted.addAll(dstNames);
+            dstNames.clear();
+            // create new partitions from src in dst, and from dst in src
+            List<FutureTask<Boolean>> pages = new ArrayList<>();
+            PageWriter toDst = new PageWriter(srcHms, dstHms, srcTable, twoWay(), true, pages);
+            PageWriter toSrc = new PageWriter(dstHms, srcHms, dstTable, true, twoWay(), pages);
+            Iterator<String> src = srcSorted.iterator();
+            Iterator<String> dst = dstSorted.iterator();
+            String s = src.hasNext() ? src.next() : null;
+            String d = dst.hasNext() ? dst.next() : null;
+            while (s != null || d != null) {
+                int cmp = s == null ? 1 : d == null ? -1 : s.compareTo(d);
+                if (cmp <= 0) {
+                    if (cmp < 0) {
+                        toDst.add(s);
+                    }
+                    s = src.hasNext() ? src.next() : null;
+                }
+                if (cmp >= 0) {
+                    if (cmp > 0) {
+                        toSrc.add(d);
+                    }
+                    d = dst.hasNext() ? dst.next() : null;
                 }
             }
+            toDst.flush();
+            toSrc.flush();
+            return !WorkScheduler.get().awaitAll(pages).contains(false);
+        } catch (IOException | UncheckedIOException e) {
+            throw new TException("Error spilling partition names to " + spillDir, e);
+        }
+    }
+
+    /**
+     * Copies partitions page by page: every page is fetched, created (or dropped, if it was replicated
+     * before, or kept, if it isn't to be created) and released before the in-flight budget lets more pages in.
+     * Pages run as separate tasks, so reading one page overlaps writing another.
+     * Pages of a planned table are journaled once written and skipped when the plan is resumed.
+     * Names of the partitions dropped from src are added to {@code dropped}, if given.
+     * Returns false if any page failed to write.
+     */
+    private boolean copyPartitions(HMSClient srcHms, HMSClient dstHms, TableInfo table,
+                                   List<String> partNames, boolean dropReplicated, boolean create,
+                                   StateStore state, String key, String side,
+                                   List<String> dropped) throws TException {
+        StateStore.TablePlan plan = key == null ? null : state.getPlan(key);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < partNames.size(); i += PAGE_SIZE) {
+            int index = i / PAGE_SIZE;
+            if (plan != null && plan.isPageDone(side, index)) {
+                RunSummary.add("Partition pages skipped as journaled", 1);
+                continue;
+            }
+            List<String> page = partNames.subList(i, Math.min(i + PAGE_SIZE, partNames.size()));
+            tasks.add(() -> {
+                acquireInFlight(page.size());
+                try {
+                    return copyPage(srcHms, dstHms, table, page, dropReplicated, create,
+                            state, plan, key, side, index, dropped);
+                } finally {
+                    inFlight.release(page.size());
+                }
+            });
         }
+        return !WorkScheduler.get().invokeAll(table.getDb(), tasks).contains(false);
     }
 
-    private void syncTablePartitions(HMSClient srcHms, HMSClient dstHms, TableInfo table,
-                                     Map<String, PartitionInfo> parts, Collection<String> bothParts) {
+    private boolean copyPage(HMSClient srcHms, HMSClient dstHms, TableInfo table, List<String> page,
+                             boolean dropReplicated, boolean create, StateStore state, StateStore.TablePlan plan,
+                             String key, String side, int index, List<String> dropped) throws TException {
         List<PartitionInfo> newParts = new ArrayList<>();
         List<PartitionInfo> delParts = new ArrayList<>();
-        for (Map.Entry<String, PartitionInfo> e : parts.entrySet()) {
-            if (!bothParts.contains(e.getKey())) {
-                if (e.getValue().isReplicated()) {
-                    delParts.add(e.getValue());
-                } else {
-                    newParts.add(e.getValue());
+        int kept = 0;
+        for (PartitionInfo p : Commands.getPartitions(srcHms, table, page)) {
+            if (dropReplicated && p.isReplicated()) {
+                delParts.add(p);
+            } else if (create) {
+                newParts.add(p);
+            } else {
+                kept++;
+            }
+        }
+        if (kept > 0) {
+            RunSummary.add("Partitions only in destination kept", kept);
+        }
+        boolean written = Commands.createPartitions(dstHms, table, newParts);
+        boolean droppedAll = Commands.dropPartitions(srcHms, table, delParts);
+        if (dropped != null && droppedAll) {
+            delParts.forEach(p -> dropped.add(p.getName()));
+        }
+        written &= droppedAll;
+        if (plan != null && written) {
+            state.pageDone(key, side, index, newParts.size(), delParts.size());
+        }
+        return written;
+    }
+
+    private static void acquireInFlight(int partitions) throws TException {
+        try {
+            inFlight.acquire(partitions);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while waiting for in-flight partitions budget", e);
+        }
+    }
+
+    /**
+     * Collects partition names into pages and submits them to be copied as they fill up, like
+     * {@link #copyPartitions} does for a list. The in-flight budget is taken before a page is queued,
+     * so queued pages are bounded as well; while waiting for it, not yet started pages of the shared list
+     * are run here.
+     */
+    private class PageWriter {
+        private final HMSClient srcHms;
+        private final HMSClient dstHms;
+        private final TableInfo table;
+        private final boolean dropReplicated;
+        private final boolean create;
+        private final List<FutureTask<Boolean>> futures;
+        private List<String> page = new ArrayList<>(PAGE_SIZE);
+        private int started;
+
+        private PageWriter(HMSClient srcHms, HMSClient dstHms, TableInfo table,
+                           boolean dropReplicated, boolean create, List<FutureTask<Boolean>> futures) {
+            this.srcHms = srcHms;
+            this.dstHms = dstHms;
+            this.table = table;
+            this.dropReplicated = dropReplicated;
+            this.create = create;
+            this.futures = futures;
+        }
+
+        private void add(String name) throws TException {
+            page.add(name);
+            if (page.size() == PAGE_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws TException {
+            if (page.isEmpty()) {
+                return;
+            }
+            List<String> names = page;
+            page = new ArrayList<>(PAGE_SIZE);
+            try {
+                while (!inFlight.tryAcquire(names.size(), 100, TimeUnit.MILLISECONDS)) {
+                    // a page started by a worker ignores run()
+                    if (started < futures.size()) {
+                        futures.get(started++).run();
+                    }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TException("Interrupted while waiting for in-flight partitions budget", e);
             }
+            futures.add(WorkScheduler.get().submit(table.getDb(), () -> {
+                try {
+                    return copyPage(srcHms, dstHms, table, names, dropReplicated, create,
+                            null, null, null, null, 0, null);
+                } finally {
+                    inFlight.release(names.size());
+                }
+            }));
         }
-        Commands.createPartitions(dstHms, table, newParts);
-        Commands.dropPartitions(srcHms, table, delParts);
     }
 
-    private Map<String, TableInfo> getTablesMap(Collection<TableInfo> tables) {
-        return tables.stream()
-                .filter(t -> t.nonTransactional() && Tools.match(tblWildcards, t.getName()))
-                .collect(Collectors.toMap(TableInfo::getName, t -> t));
+    /**
+     * A dst metastore with its own sync state. It is connected on first use, so one that is down
+     * doesn't stop the others from being synced.
+     */
+    private static class Destination {
+        private final String uri;
+        private final boolean metaSasl;
+        private HMSClient hms;
+        private StateStore state = new StateStore();
+
+        private Destination(String uri, boolean metaSasl) {
+            this.uri = uri;
+            this.metaSasl = metaSasl;
+        }
+
+        private synchronized HMSClient hms() throws MetaException {
+            if (hms == null) {
+                hms = Tools.createNewMetaConnection(uri, metaSasl);
+            }
+            return hms;
+        }
+
+        private synchronized void reconnect() throws MetaException {
+            if (hms != null) {
+                hms.reconnect();
+            }
+        }
     }
 
-    private Map<String, PartitionInfo> getPartitionsMap(TableInfo table) {
-        return table.getPartitions().stream()
-                .collect(Collectors.toMap(PartitionInfo::getName, t -> t));
+    /**
+     * Partition names of a table and their digest, listed on first use and shared by all dst metastores.
+     */
+    private static class PartitionNames implements AutoCloseable {
+        private final HMSClient hms;
+        private final TableInfo table;
+        private List<String> names;
+        private PartitionDigest digest;
+        private ExternalSort sorted;
+
+        private PartitionNames(HMSClient hms, TableInfo table) {
+            this.hms = hms;
+            this.table = table;
+        }
+
+        private synchronized List<String> get() throws TException {
+            if (names == null) {
+                names = Commands.getPartitionNames(hms, table);
+            }
+            return names;
+        }
+
+        private synchronized PartitionDigest digest() throws TException {
+            if (digest == null) {
+                digest = PartitionDigest.of(get());
+            }
+            return digest;
+        }
+
+        /**
+         * Whether there are more names than the spill threshold, they are diffed on disk only.
+         */
+        private synchronized boolean isLarge() throws TException {
+            return names == null && sorted != null || get().size() > spillThreshold;
+        }
+
+        /**
+         * The names spilled to sorted run files, once. Names over the spill threshold are dropped from memory
+         * then, and listed again only if a dst missing the table needs them all.
+         */
+        private synchronized ExternalSort sorted() throws TException, IOException {
+            if (sorted == null) {
+                ExternalSort sort = new ExternalSort(spillRunDir(), spillRunSize());
+                try {
+                    sort.addAll(get());
+                } catch (IOException | RuntimeException e) {
+                    sort.close();
+                    throw e;
+                }
+                sorted = sort;
+                if (names.size() > spillThreshold) {
+                    names = null;
+                }
+            }
+            return sorted;
+        }
+
+        private synchronized void release() {
+            names = null;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (sorted != null) {
+                sorted.close();
+                sorted = null;
+            }
+        }
+    }
+
+    Map<String, TableInfo> getTablesMap(Collection<TableInfo> tables) {
+        return tables.stream()
+                .filter(t -> t.nonTransactional() && tblWildcards.matches(t.getName()))
+                .collect(Collectors.toMap(TableInfo::getName, t -> t));
     }
 }
@@ -2,14 +2,26 @@ package com.wandisco.hivesync.main;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import com.wandisco.hivesync.common.AdaptiveLimiter;
+import com.wandisco.hivesync.common.FailureReport;
+import com.wandisco.hivesync.common.WorkScheduler;
 import com.wandisco.hivesync.hive.Commands;
+import com.wandisco.hivesync.hive.HMSClientPool;
+import com.wandisco.hivesync.hive.MetastoreMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 public class Main {
+
+    private static final Logger LOG = LogManager.getLogger(Main.class);
+
     public static void main(String[] args) throws Exception {
         Params p = new Params();
         JCommander jce = new JCommander(p);
         try {
             jce.parse(args);
+            Commands.setPartitionFilters(p.getPartitionFilters());
+            HMSClientPool.setMaxSize(p.getPoolSize());
         } catch (ParameterException e) {
             System.err.println("ERROR: " + e.getMessage());
             jce.usage();
@@ -23,8 +35,41 @@ public class Main {
         if (p.isDryRun()) {
             Commands.setDryRun(true);
         }
+        Commands.setTableBatchSize(p.getTableBatchSize());
+        Commands.setPartitionSpec(p.isPartitionSpec());
+        Commands.setRetries(p.getRetries(), p.getRetryBackoff());
+        WorkScheduler.configure(p.getThreads(), p.getMaxReads(), p.getMaxWrites());
+        AdaptiveLimiter.configure(p.getMinWrites(), p.getWriteLatencyTarget(), p.getMinBatchSize(), p.getMaxBatchSize());
+        HMSClientPool.setIdleTimeout(p.getPoolIdleTimeout());
+        HiveSync.setMaxInFlightPartitions(p.getMaxInFlightPartitions());
+        HiveSync.setSpill(p.getSpillThreshold(), p.getSpillDir());
+        MetastoreMetrics.setMetricsFile(p.getMetricsFile(), p.getMetricsInterval());
         HiveSync hs = new HiveSync(p.getSrcMeta(), p.getDstMeta(), p.isMetaSasl(),
                 p.getDatabases(), p.getTables());
-        hs.execute();
+        // fingerprints of a single run without a state dir are never compared with anything
+        if (p.isSkipUnchanged() && !p.isDaemon() && (p.getStateDir() == null || p.isDryRun())) {
+            LOG.warn("--skip-unchanged has no effect without --state-dir (not used by --dry-run) or --daemon, ignoring it");
+        } else {
+            hs.setSkipUnchanged(p.isSkipUnchanged());
+        }
+        hs.setReplicaDigest(p.isReplicaDigest());
+        hs.setLargestFirst(p.isLargestFirst());
+        if (p.getStateDir() != null && !p.isDryRun()) {
+            hs.setStateDir(p.getStateDir());
+        }
+        if (p.isEstimate()) {
+            hs.estimate();
+        } else if (p.isDaemon()) {
+            NotificationSync daemon = new NotificationSync(hs, p.getSrcMeta(), p.isMetaSasl(),
+                    p.getEventIdFile(), p.getPollInterval(), p.getEventBatch());
+            daemon.setDryRun(p.isDryRun());
+            daemon.run();
+        } else {
+            hs.execute();
+        }
+        HMSClientPool.closeAll();
+        if (FailureReport.size() > 0) {
+            System.exit(2);
+        }
     }
 }
@@ -0,0 +1,246 @@
+package com.wandisco.hivesync.main;
+
+import com.wandisco.hivesync.common.FailureReport;
+import com.wandisco.hivesync.common.RunSummary;
+import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.hive.HMSClient;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.NotificationEvent;
+import org.apache.hadoop.hive.metastore.api.NotificationEventResponse;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.messaging.MessageFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daemon mode: tails the source metastore notification log and re-syncs only the tables touched by
+ * new events. A full {@link HiveSync#execute()} pass runs on bootstrap and whenever events are missing.
+ * A destination failing to sync doesn't hold up the others: events are applied without it, and it is
+ * fully synced by {@link HiveSync#catchUp()} once it answers again.
+ */
+public class NotificationSync {
+
+    private static final Logger LOG = LogManager.getLogger(NotificationSync.class);
+
+    private static final Set<String> EVENT_TYPES = new HashSet<>(Arrays.asList(
+            "CREATE_TABLE", "DROP_TABLE", "ALTER_TABLE",
+            "ADD_PARTITION", "DROP_PARTITION", "ALTER_PARTITION"));
+    // attempts to apply the same event batch before falling back to a full sync
+    private static final int MAX_BATCH_ATTEMPTS = 3;
+    // time between full syncs of lagging destinations
+    private static final long CATCH_UP_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    // time between compactions of the sync state journals grown by event syncs
+    private static final long COMPACT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    private final HiveSync hiveSync;
+    private final HMSClient srcHms;
+    private final Path eventIdFile;
+    private final long pollInterval;
+    private final int eventBatch;
+    private boolean dryRun;
+
+    public NotificationSync(HiveSync hiveSync, String srcMeta, boolean metaSasl,
+                            String eventIdFile, int pollInterval, int eventBatch) throws MetaException {
+        this.hiveSync = hiveSync;
+        this.srcHms = Tools.createNewMetaConnection(srcMeta, metaSasl);
+        this.eventIdFile = Paths.get(eventIdFile);
+        this.pollInterval = TimeUnit.SECONDS.toMillis(pollInterval);
+        this.eventBatch = eventBatch;
+    }
+
+    /**
+     * Reads the event id file but never writes it, so a later real run still applies the events
+     * that were only logged.
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        Long lastEventId = readEventId();
+        Long failedEventId = null;
+        int failures = 0;
+        long lastCatchUp = System.currentTimeMillis();
+        long lastCompaction = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            int processed = 0;
+            try {
+                if (lastEventId == null) {
+                    lastEventId = fullSync();
+                } else {
+                    NotificationEventResponse response = srcHms.getNextNotification(lastEventId, eventBatch, null);
+                    List<NotificationEvent> events = response.getEvents();
+                    if (!events.isEmpty() && events.get(0).getEventId() > lastEventId + 1) {
+                        LOG.warn("Notification events {}..{} are missing, running full sync",
+                                lastEventId + 1, events.get(0).getEventId() - 1);
+                        lastEventId = null;
+                        continue;
+                    }
+                    processed = events.size();
+                    if (processed > 0) {
+                        lastEventId = apply(events);
+                        writeEventId(lastEventId);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // the client rejects a request for events that are already cleaned up
+                LOG.warn("Notification events after {} are missing, running full sync", lastEventId, e);
+                lastEventId = null;
+                continue;
+            } catch (TException e) {
+                LOG.error("Error processing notification events after {}", lastEventId, e);
+                failures = lastEventId != null && lastEventId.equals(failedEventId) ? failures + 1 : 1;
+                failedEventId = lastEventId;
+                if (lastEventId != null && failures >= MAX_BATCH_ATTEMPTS) {
+                    // a table that can't be synced from the events must not stall the daemon
+                    LOG.warn("Notification events after {} failed {} times, running full sync", lastEventId, failures);
+                    lastEventId = null;
+                    failures = 0;
+                }
+                reconnect();
+            }
+            if (hiveSync.hasLagging() && System.currentTimeMillis() - lastCatchUp >= CATCH_UP_INTERVAL) {
+                lastCatchUp = System.currentTimeMillis();
+                catchUp(lastEventId);
+            }
+            if (System.currentTimeMillis() - lastCompaction >= COMPACT_INTERVAL) {
+                lastCompaction = System.currentTimeMillis();
+                hiveSync.compactState();
+            }
+            if (processed < eventBatch) {
+                Thread.sleep(pollInterval);
+            }
+        }
+    }
+
+    private long fullSync() throws TException, IOException {
+        long eventId = srcHms.getCurrentNotificationEventId().getEventId();
+        LOG.info("Running full sync, notification event id: {}", eventId);
+        hiveSync.execute();
+        writeEventId(eventId);
+        return eventId;
+    }
+
+    private void catchUp(Long eventId) throws IOException {
+        try {
+            hiveSync.catchUp();
+        } catch (TException e) {
+            LOG.error("Error catching up with lagging destinations", e);
+            reconnect();
+        }
+        if (eventId != null) {
+            writeEventId(eventId);
+        }
+    }
+
+    private long apply(List<NotificationEvent> events) throws TException {
+        // several events for the same table collapse into a single table sync
+        Map<String, Set<String>> tables = new LinkedHashMap<>();
+        for (NotificationEvent event : events) {
+            if (EVENT_TYPES.contains(event.getEventType())
+                    && hiveSync.matchDatabase(event.getDbName())
+                    && hiveSync.matchTable(event.getTableName())) {
+                LOG.trace("Notification event {}: {} {}.{}", event.getEventId(), event.getEventType(),
+                        event.getDbName(), event.getTableName());
+                tables.computeIfAbsent(event.getDbName(), k -> new LinkedHashSet<>()).add(event.getTableName());
+            }
+            // a renamed table is dropped under its old name, which may be the only one matching
+            Table before = "ALTER_TABLE".equals(event.getEventType()) ? renamedFrom(event) : null;
+            if (before != null
+                    && hiveSync.matchDatabase(before.getDbName())
+                    && hiveSync.matchTable(before.getTableName())) {
+                LOG.trace("Notification event {}: table {}.{} renamed", event.getEventId(),
+                        before.getDbName(), before.getTableName());
+                tables.computeIfAbsent(before.getDbName(), k -> new LinkedHashSet<>()).add(before.getTableName());
+            }
+        }
+        RunSummary.reset();
+        FailureReport.reset();
+        TException failure = null;
+        for (Map.Entry<String, Set<String>> e : tables.entrySet()) {
+            LOG.info("Syncing tables from notification events: {} {}", e.getKey(), e.getValue());
+            try {
+                hiveSync.syncTables(e.getKey(), e.getValue());
+            } catch (TException ex) {
+                // the src couldn't be read, the other databases are synced and the batch is retried
+                LOG.error("Error syncing tables from notification events: {} {}", e.getKey(), e.getValue(), ex);
+                FailureReport.add(e.getKey(), "sync tables from events", ex);
+                failure = failure == null ? ex : failure;
+            }
+        }
+        RunSummary.log();
+        FailureReport.log();
+        if (failure != null) {
+            throw failure;
+        }
+        return events.get(events.size() - 1).getEventId();
+    }
+
+    /**
+     * The table before an ALTER_TABLE event if the event renamed it, otherwise null.
+     */
+    private static Table renamedFrom(NotificationEvent event) {
+        try {
+            Table before = MessageFactory.getInstance().getDeserializer()
+                    .getAlterTableMessage(event.getMessage()).getTableObjBefore();
+            return before.getDbName().equalsIgnoreCase(event.getDbName())
+                    && before.getTableName().equalsIgnoreCase(event.getTableName()) ? null : before;
+        } catch (Exception e) {
+            LOG.warn("Can't read notification event {}, a renamed table is dropped by the next full sync",
+                    event.getEventId(), e);
+            return null;
+        }
+    }
+
+    private void reconnect() {
+        try {
+            srcHms.reconnect();
+            hiveSync.reconnect();
+        } catch (MetaException e) {
+            LOG.error("Error reconnecting to metastore", e);
+        }
+    }
+
+    /**
+     * The event id is on the first line, the lagging destinations follow it one per line.
+     */
+    private Long readEventId() throws IOException {
+        if (!Files.exists(eventIdFile)) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(eventIdFile, StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line.trim());
+            }
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        hiveSync.setLagging(lines.subList(1, lines.size()));
+        return Long.parseLong(lines.get(0));
+    }
+
+    private void writeEventId(long eventId) throws IOException {
+        if (dryRun) {
+            LOG.info("Dry run, not saving notification event id: {}", eventId);
+            return;
+        }
+        Path tmp = eventIdFile.resolveSibling(eventIdFile.getFileName() + ".tmp");
+        List<String> lines = new ArrayList<>();
+        lines.add(Long.toString(eventId));
+        lines.addAll(hiveSync.getLagging());
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, eventIdFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,6 +1,9 @@
 package com.wandisco.hivesync.main;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.IParameterSplitter;
+import com.wandisco.hivesync.hive.PartitionFilter;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -20,26 +23,159 @@ public class Params {
     private String srcMeta;
 
     @Parameter(names = {"--dst-meta"},
-            description = "Thrift connection string to metastore thrift://host:port",
-            required = true)
-    private String dstMeta;
+            description = "Thrift connection string to metastore thrift://host:port, can be repeated to sync " +
+                    "several destinations from a single source listing, one way",
+            required = true,
+            splitter = NoSplitter.class)
+    private List<String> dstMeta;
 
     @Parameter(names = {"--meta-sasl"},
             description = "Set 'hive.metastore.sasl.enabled = true' (default false)")
     private Boolean metaSasl;
 
     @Parameter(names = {"--database"},
-            description = "Database(s), comma-separated list with wildcards")
+            description = "Database(s), comma- or |-separated list with wildcards")
     private List<String> databases = new ArrayList<>(Collections.singletonList("default"));
 
     @Parameter(names = {"--table"},
-            description = "Table(s), comma-separated list with wildcards")
+            description = "Table(s), comma- or |-separated list with wildcards")
     private List<String> tables = new ArrayList<>(Collections.singletonList("*"));
 
+    @Parameter(names = {"--partition-filter"},
+            description = "Sync only partitions matching a metastore filter in tables matching a wildcard, " +
+                    "<db.table>:<filter>, e.g. \"sales.*:region = 'eu'\", can be repeated",
+            splitter = NoSplitter.class)
+    private List<String> partitionFilters = new ArrayList<>();
+
+    @Parameter(names = {"--partition-window"},
+            description = "Sync only partitions of the last days in tables matching a wildcard, " +
+                    "<db.table>:<date key>:<days>[:<date format, default yyyy-MM-dd>], e.g. logs.*:dt:7, can be repeated",
+            splitter = NoSplitter.class)
+    private List<String> partitionWindows = new ArrayList<>();
+
     @Parameter(names = {"--dry-run"},
             description = "Don't run, but output commands to log")
     private Boolean dryRun;
 
+    @Parameter(names = {"--estimate"},
+            description = "Don't run, but log the tables and partitions to create or drop and the metastore calls " +
+                    "per database, from partition counts and names")
+    private Boolean estimate;
+
+    @Parameter(names = {"--threads"},
+            description = "Number of sync worker threads (default 16)")
+    private int threads = 16;
+
+    @Parameter(names = {"--max-reads"},
+            description = "Max concurrent read calls per metastore (default 16)")
+    private int maxReads = 16;
+
+    @Parameter(names = {"--max-writes"},
+            description = "Max concurrent write calls per metastore (default 8)")
+    private int maxWrites = 8;
+
+    @Parameter(names = {"--min-writes"},
+            description = "Concurrent write calls per metastore to keep when backing off (default 1)")
+    private int minWrites = 1;
+
+    @Parameter(names = {"--write-latency-target"},
+            description = "Write call latency in ms above which writes to a metastore back off (default 2000)")
+    private long writeLatencyTarget = 2000;
+
+    @Parameter(names = {"--min-batch-size"},
+            description = "Min partitions per write call when backing off (default 50)")
+    private int minBatchSize = 50;
+
+    @Parameter(names = {"--max-batch-size"},
+            description = "Max partitions per write call, at most 1000 (default 1000)")
+    private int maxBatchSize = 1000;
+
+    @Parameter(names = {"--table-batch-size"},
+            description = "Number of tables fetched per metastore call (default 100)")
+    private int tableBatchSize = 100;
+
+    @Parameter(names = {"--max-inflight-partitions"},
+            description = "Max partitions fetched from one metastore and not yet written to the other " +
+                    "(default threads x 1000, a page per thread)")
+    private Integer maxInFlightPartitions;
+
+    @Parameter(names = {"--spill-threshold"},
+            description = "Partition count of a table side above which partition names are diffed " +
+                    "through sorted files on disk, holding one side's listing in memory; with several " +
+                    "destinations, source names below it are held as well while a destination above it " +
+                    "is listed (default 2000000)")
+    private long spillThreshold = 2_000_000;
+
+    @Parameter(names = {"--spill-dir"},
+            description = "Directory for the sorted partition name files, kept in a subdirectory per process " +
+                    "(default java.io.tmpdir)")
+    private String spillDir = System.getProperty("java.io.tmpdir");
+
+    @Parameter(names = {"--no-partition-spec"},
+            description = "Create partitions with add_partitions and a storage descriptor copy per partition")
+    private Boolean noPartitionSpec;
+
+    @Parameter(names = {"--pool-size"},
+            description = "Max open connections per metastore, at least 2 x (threads + 1) so nested calls " +
+                    "always get one (default 2 x (threads + 1))")
+    private Integer poolSize;
+
+    @Parameter(names = {"--pool-idle-timeout"},
+            description = "Seconds after which an idle metastore connection is closed (default 300)")
+    private int poolIdleTimeout = 300;
+
+    @Parameter(names = {"--skip-unchanged"},
+            description = "Don't list partitions of tables whose partition count, first and last partition " +
+                    "and DDL time didn't change on both sides since the last sync, kept in --state-dir or, " +
+                    "in daemon mode, in memory; ignored otherwise")
+    private Boolean skipUnchanged;
+
+    @Parameter(names = {"--no-replica-digest"},
+            description = "Don't keep a digest of synced partitions in the destination table parameters, " +
+                    "list all destination partitions every time")
+    private Boolean noReplicaDigest;
+
+    @Parameter(names = {"--no-largest-first"},
+            description = "Don't count table partitions to start the biggest tables first, " +
+                    "sync tables round-robin across databases")
+    private Boolean noLargestFirst;
+
+    @Parameter(names = {"--state-dir"},
+            description = "Directory to keep the sync state journal in, an interrupted sync resumes from it")
+    private String stateDir;
+
+    @Parameter(names = {"--retries"},
+            description = "Retries of a partition write failed with a timeout or connection error (default 3)")
+    private int retries = 3;
+
+    @Parameter(names = {"--retry-backoff"},
+            description = "Milliseconds to wait before the first retry, doubled for every next one (default 1000)")
+    private long retryBackoff = 1000;
+
+    @Parameter(names = {"--metrics-file"},
+            description = "File to write metastore call metrics to in Prometheus text format")
+    private String metricsFile;
+
+    @Parameter(names = {"--metrics-interval"},
+            description = "Seconds between metrics file updates (default 30)")
+    private int metricsInterval = 30;
+
+    @Parameter(names = {"--daemon"},
+            description = "Keep running and sync tables changed in the source notification log")
+    private Boolean daemon;
+
+    @Parameter(names = {"--event-id-file"},
+            description = "File with the last processed source notification event id (daemon mode)")
+    private String eventIdFile = "hive-metastore-sync.event-id";
+
+    @Parameter(names = {"--poll-interval"},
+            description = "Seconds between notification log polls (daemon mode, default 30)")
+    private int pollInterval = 30;
+
+    @Parameter(names = {"--event-batch"},
+            description = "Max notification events fetched per poll (daemon mode, default 1000)")
+    private int eventBatch = 1000;
+
     public Boolean getHelp() {
         return help;
     }
@@ -48,7 +184,7 @@ public class Params {
         return srcMeta;
     }
 
-    public String getDstMeta() {
+    public List<String> getDstMeta() {
         return dstMeta;
     }
 
@@ -64,7 +200,144 @@ public class Params {
         return tables;
     }
 
+    public List<PartitionFilter> getPartitionFilters() {
+        List<PartitionFilter> filters = new ArrayList<>();
+        try {
+            for (String spec : partitionFilters) {
+                filters.add(PartitionFilter.expression(spec));
+            }
+            for (String spec : partitionWindows) {
+                filters.add(PartitionFilter.window(spec));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(e.getMessage());
+        }
+        return filters;
+    }
+
     public Boolean isDryRun() {
         return dryRun != null && dryRun;
     }
+
+    public boolean isEstimate() {
+        return estimate != null && estimate;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getMaxReads() {
+        return maxReads;
+    }
+
+    public int getMaxWrites() {
+        return maxWrites;
+    }
+
+    public int getMinWrites() {
+        return minWrites;
+    }
+
+    public long getWriteLatencyTarget() {
+        return writeLatencyTarget;
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public int getTableBatchSize() {
+        return tableBatchSize;
+    }
+
+    public int getMaxInFlightPartitions() {
+        return maxInFlightPartitions != null ? maxInFlightPartitions : threads * 1000;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public String getSpillDir() {
+        return spillDir;
+    }
+
+    public boolean isPartitionSpec() {
+        return noPartitionSpec == null || !noPartitionSpec;
+    }
+
+    public int getPoolSize() {
+        int min = 2 * (threads + 1);
+        if (poolSize != null && poolSize < min) {
+            throw new ParameterException("--pool-size must be at least 2 x (threads + 1) = " + min + ": " + poolSize);
+        }
+        return poolSize != null ? poolSize : min;
+    }
+
+    public int getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged != null && skipUnchanged;
+    }
+
+    public boolean isReplicaDigest() {
+        return noReplicaDigest == null || !noReplicaDigest;
+    }
+
+    public boolean isLargestFirst() {
+        return noLargestFirst == null || !noLargestFirst;
+    }
+
+    public String getStateDir() {
+        return stateDir;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public boolean isDaemon() {
+        return daemon != null && daemon;
+    }
+
+    public String getEventIdFile() {
+        return eventIdFile;
+    }
+
+    public int getPollInterval() {
+        return pollInterval;
+    }
+
+    public int getEventBatch() {
+        return eventBatch;
+    }
+
+    /**
+     * Keeps a filter expression with commas in one value.
+     */
+    public static class NoSplitter implements IParameterSplitter {
+        @Override
+        public List<String> split(String value) {
+            return Collections.singletonList(value);
+        }
+    }
 }
@@ -0,0 +1,347 @@
+package com.wandisco.hivesync.main;
+
+import com.wandisco.hivesync.hive.Fingerprint;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sync state kept between runs: fingerprints of synced tables and the progress of tables being synced.
+ * <p>
+ * Every change is appended to a journal file and forced to disk before the call returns. A successful
+ * run writes a compacted snapshot and truncates the journal, and so does {@link #compact()} for syncs
+ * outside a run. Loading replays the snapshot and then the
+ * journal, so a crashed run can resume where its last journaled page ended.
+ * Without a directory the state is kept in memory only.
+ * <p>
+ * Journal records are tab-separated lines:
+ * <pre>
+ * RUN   start|end
+ * DONE  db.table  srcFingerprint  dstFingerprint
+ * PLAN  db.table  src|dst  srcFingerprint  dstFingerprint  count
+ * NAMES db.table  src|dst  name...
+ * PAGE  db.table  src|dst  index  created  dropped
+ * </pre>
+ * A PLAN starts the list of partitions to copy from one side, NAMES records of up to a thousand names
+ * follow it, and a PAGE marks a page of that list as written. A plan with fewer names than its count
+ * was cut off by a crash and is dropped on load.
+ */
+public class StateStore {
+
+    private static final Logger LOG = LogManager.getLogger(StateStore.class);
+
+    private static final int NAMES_PER_RECORD = 1000;
+
+    public static final String SRC = "src";
+    public static final String DST = "dst";
+
+    private final Path journalFile;
+    private final Path snapshotFile;
+    private final FileChannel journal;
+
+    private final Map<String, Fingerprint[]> done = new ConcurrentHashMap<>();
+    private final Map<String, TablePlan> plans = new ConcurrentHashMap<>();
+    // tables synced by a run which didn't end
+    private final Set<String> resumed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * State kept in memory only.
+     */
+    public StateStore() {
+        journalFile = null;
+        snapshotFile = null;
+        journal = null;
+    }
+
+    public StateStore(String dir) throws IOException {
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        journalFile = path.resolve("journal");
+        snapshotFile = path.resolve("snapshot");
+        Set<String> doneInRun = new HashSet<>();
+        boolean running = replay(snapshotFile, doneInRun) | replay(journalFile, doneInRun);
+        plans.values().removeIf(plan -> !plan.isComplete());
+        if (running) {
+            resumed.addAll(doneInRun);
+            LOG.info("Resuming interrupted run: {} tables done, {} tables in progress", resumed.size(), plans.size());
+        }
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    public boolean isPersistent() {
+        return journal != null;
+    }
+
+    public void startRun() {
+        append("RUN", "start");
+    }
+
+    /**
+     * Marks the run as complete and compacts the journal into the snapshot.
+     */
+    public synchronized void endRun() {
+        resumed.clear();
+        if (journal == null) {
+            return;
+        }
+        append("RUN", "end");
+        compact();
+    }
+
+    /**
+     * Writes the state into the snapshot and truncates the journal, so it doesn't grow without end when
+     * tables are synced outside a run. Appends wait for it to finish.
+     */
+    public synchronized void compact() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Fingerprint[]> e : done.entrySet()) {
+                    w.write(record("DONE", e.getKey(), e.getValue()[0].toString(), e.getValue()[1].toString()));
+                }
+                for (Map.Entry<String, TablePlan> e : plans.entrySet()) {
+                    e.getValue().write(w, e.getKey());
+                }
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.truncate(0);
+        } catch (IOException e) {
+            LOG.error("Error writing sync state snapshot: {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Whether both sides of the table are unchanged since it was last synced. Fingerprints journaled
+     * without partition names never match, so a table is listed again after an upgrade.
+     */
+    public boolean isUnchanged(String table, Fingerprint src, Fingerprint dst) {
+        Fingerprint[] fp = done.get(table);
+        return fp != null && fp[0].equals(src) && fp[1].equals(dst);
+    }
+
+    /**
+     * Whether the table was synced by an interrupted run.
+     */
+    public boolean isResumed(String table) {
+        return resumed.contains(table);
+    }
+
+    public void tableDone(String table, Fingerprint src, Fingerprint dst) {
+        done.put(table, new Fingerprint[]{src, dst});
+        plans.remove(table);
+        append("DONE", table, src.toString(), dst.toString());
+    }
+
+    public TablePlan getPlan(String table) {
+        return plans.get(table);
+    }
+
+    public void planTable(String table, Fingerprint src, Fingerprint dst, List<String> srcOnly, List<String> dstOnly) {
+        TablePlan plan = new TablePlan(src, dst);
+        plan.names.put(SRC, srcOnly);
+        plan.names.put(DST, dstOnly);
+        plan.counts.put(SRC, srcOnly.size());
+        plan.counts.put(DST, dstOnly.size());
+        plans.put(table, plan);
+        List<String> records = plan.records(table, SRC);
+        records.addAll(plan.records(table, DST));
+        write(records.toArray(new String[0]));
+    }
+
+    public void pageDone(String table, String side, int page, int created, int dropped) {
+        TablePlan plan = plans.get(table);
+        if (plan != null) {
+            plan.pageDone(side, page, created, dropped);
+        }
+        append("PAGE", table, side, Integer.toString(page), Integer.toString(created), Integer.toString(dropped));
+    }
+
+    private boolean replay(Path file, Set<String> doneInRun) throws IOException {
+        boolean running = false;
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                try {
+                    switch (f[0]) {
+                        case "RUN":
+                            running = "start".equals(f[1]);
+                            doneInRun.clear();
+                            break;
+                        case "DONE":
+                            done.put(f[1], new Fingerprint[]{Fingerprint.parse(f[2]), Fingerprint.parse(f[3])});
+                            plans.remove(f[1]);
+                            doneInRun.add(f[1]);
+                            break;
+                        case "PLAN":
+                            TablePlan plan = plans.get(f[1]);
+                            if (plan == null || SRC.equals(f[2])) {
+                                plan = new TablePlan(Fingerprint.parse(f[3]), Fingerprint.parse(f[4]));
+                                plans.put(f[1], plan);
+                            }
+                            List<String> names = new ArrayList<>(Arrays.asList(f).subList(5, f.length));
+                            // partition names are key=value, a single number is the count of a chunked plan
+                            if (names.size() == 1 && names.get(0).matches("\\d+")) {
+                                plan.counts.put(f[2], Integer.parseInt(names.get(0)));
+                                names.clear();
+                            } else {
+                                plan.counts.put(f[2], names.size());
+                            }
+                            plan.names.put(f[2], names);
+                            break;
+                        case "NAMES":
+                            TablePlan planned = plans.get(f[1]);
+                            if (planned != null) {
+                                planned.names.get(f[2]).addAll(Arrays.asList(f).subList(3, f.length));
+                            }
+                            break;
+                        case "PAGE":
+                            TablePlan p = plans.get(f[1]);
+                            if (p != null) {
+                                p.pageDone(f[2], Integer.parseInt(f[3]), Integer.parseInt(f[4]), Integer.parseInt(f[5]));
+                            }
+                            break;
+                        default:
+                            LOG.warn("Unknown sync state record: {}", f[0]);
+                    }
+                } catch (RuntimeException e) {
+                    // the last record may be cut off by a crash
+                    LOG.warn("Skipping broken sync state record in {}", file, e);
+                }
+            }
+        }
+        return running;
+    }
+
+    private void append(String... fields) {
+        write(record(fields));
+    }
+
+    private synchronized void write(String... records) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            for (String record : records) {
+                journal.write(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            LOG.error("Error writing sync state journal: {}", journalFile, e);
+        }
+    }
+
+    private static String record(String... fields) {
+        return String.join("\t", fields) + "\n";
+    }
+
+    /**
+     * Partitions to copy from each side of a table, with the fingerprints they were planned at
+     * and the pages already written.
+     */
+    public static class TablePlan {
+        private final Fingerprint src;
+        private final Fingerprint dst;
+        private final Map<String, List<String>> names = new HashMap<>();
+        // planned name counts by side, to tell a plan cut off by a crash
+        private final Map<String, Integer> counts = new HashMap<>();
+        // created and dropped counts of written pages, by side and page index
+        private final Map<String, Map<Integer, int[]>> pages = new HashMap<>();
+        private long srcDelta;
+        private long dstDelta;
+
+        private TablePlan(Fingerprint src, Fingerprint dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+
+        public List<String> getNames(String side) {
+            return names.getOrDefault(side, Collections.emptyList());
+        }
+
+        public synchronized boolean isPageDone(String side, int page) {
+            return pages.getOrDefault(side, Collections.emptyMap()).containsKey(page);
+        }
+
+        /**
+         * Whether both sides have the DDL times and partition counts they should have if nothing but
+         * the journaled pages changed them. The journaled pages may have changed their first and last names.
+         */
+        public synchronized boolean matches(Fingerprint srcNow, Fingerprint dstNow) {
+            return srcNow != null && dstNow != null
+                    && srcNow.matches(src.getDdlTime(), src.getPartitionCount() + srcDelta)
+                    && dstNow.matches(dst.getDdlTime(), dst.getPartitionCount() + dstDelta);
+        }
+
+        private synchronized void pageDone(String side, int page, int created, int dropped) {
+            if (pages.computeIfAbsent(side, k -> new HashMap<>()).putIfAbsent(page, new int[]{created, dropped}) == null) {
+                // pages of the src list create in dst and drop from src, and the other way round
+                if (SRC.equals(side)) {
+                    dstDelta += created;
+                    srcDelta -= dropped;
+                } else {
+                    srcDelta += created;
+                    dstDelta -= dropped;
+                }
+            }
+        }
+
+        private boolean isComplete() {
+            for (String side : Arrays.asList(SRC, DST)) {
+                Integer count = counts.get(side);
+                if (count == null || count != getNames(side).size()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private List<String> records(String table, String side) {
+            List<String> all = getNames(side);
+            List<String> records = new ArrayList<>();
+            records.add(StateStore.record("PLAN", table, side, src.toString(), dst.toString(),
+                    Integer.toString(all.size())));
+            for (int i = 0; i < all.size(); i += NAMES_PER_RECORD) {
+                List<String> fields = new ArrayList<>(Arrays.asList("NAMES", table, side));
+                fields.addAll(all.subList(i, Math.min(i + NAMES_PER_RECORD, all.size())));
+                records.add(StateStore.record(fields.toArray(new String[0])));
+            }
+            return records;
+        }
+
+        private synchronized void write(BufferedWriter w, String table) throws IOException {
+            for (String record : records(table, SRC)) {
+                w.write(record);
+            }
+            for (String record : records(table, DST)) {
+                w.write(record);
+            }
+            for (Map.Entry<String, Map<Integer, int[]>> e : pages.entrySet()) {
+                for (Map.Entry<Integer, int[]> page : e.getValue().entrySet()) {
+                    w.write(StateStore.record("PAGE", table, e.getKey(), page.getKey().toString(),
+                            Integer.toString(page.getValue()[0]), Integer.toString(page.getValue()[1])));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.wandisco.hivesync.main;
+
+import com.wandisco.hivesync.common.WorkScheduler;
+import com.wandisco.hivesync.hive.Commands;
+import com.wandisco.hivesync.hive.HMSClient;
+import com.wandisco.hivesync.hive.PartitionIndex;
+import com.wandisco.hivesync.hive.TableInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TException;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work a sync would do per database and dst metastore, estimated from table lists and partition counts.
+ * Partition names are listed only for tables with partitions on both sides, to diff them;
+ * tables above the spill threshold are estimated from the count difference. Nothing is written.
+ * The src tables, counts and names are listed once and diffed with every dst metastore.
+ */
+class SyncEstimate {
+
+    private static final Logger LOG = LogManager.getLogger(SyncEstimate.class);
+
+    // partitions per getPartitionsByNames call, as in Commands.getPartitions
+    private static final int FETCH_BATCH = 1000;
+    // counters of all databases, not a valid database name
+    private static final String TOTAL = "*";
+
+    private final HiveSync hiveSync;
+    private final HMSClient srcHms;
+    private final Map<HMSClient, Set<String>> dstDbs;
+    private final long spillThreshold;
+    private final boolean twoWay;
+    // src calls are logged with the dst ones if there is a single dst
+    private final String srcGroup;
+    // counters by metastore, database and name
+    private final Map<String, Map<String, Map<String, AtomicLong>>> counters = new LinkedHashMap<>();
+
+    SyncEstimate(HiveSync hiveSync, HMSClient srcHms, Map<HMSClient, Set<String>> dstDbs, long spillThreshold) {
+        this.hiveSync = hiveSync;
+        this.srcHms = srcHms;
+        this.dstDbs = dstDbs;
+        this.spillThreshold = spillThreshold;
+        twoWay = dstDbs.size() == 1;
+        srcGroup = twoWay ? dstDbs.keySet().iterator().next().getUri() : srcHms.getUri();
+        counters.put(srcGroup, new ConcurrentSkipListMap<>());
+        for (HMSClient dstHms : dstDbs.keySet()) {
+            counters.put(dstHms.getUri(), new ConcurrentSkipListMap<>());
+        }
+    }
+
+    void run(Collection<String> srcDbs) throws TException {
+        WorkScheduler scheduler = WorkScheduler.get();
+        List<FutureTask<Void>> futures = new ArrayList<>();
+        for (String db : srcDbs) {
+            for (Map.Entry<HMSClient, Set<String>> dst : dstDbs.entrySet()) {
+                if (!dst.getValue().contains(db)) {
+                    add(dst.getKey(), db, "Databases to create", 1);
+                    add(dst.getKey(), db, "Metastore calls", 1);
+                }
+            }
+            futures.add(scheduler.submit(db, () -> {
+                estimateDatabase(db);
+                return null;
+            }));
+        }
+        scheduler.awaitAll(futures);
+        log();
+    }
+
+    private void estimateDatabase(String db) throws TException {
+        try (HMSClient srcHms = this.srcHms.createClient()) {
+            Collection<TableInfo> srcList = Commands.getTables(srcHms, db);
+            add(srcGroup, db, "Metastore calls", tableListCalls(srcList.size()));
+            Map<String, SourceTable> srcTables = new HashMap<>();
+            for (TableInfo table : hiveSync.getTablesMap(srcList).values()) {
+                srcTables.put(table.getName(), new SourceTable(table));
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Map.Entry<HMSClient, Set<String>> dst : dstDbs.entrySet()) {
+                boolean exists = dst.getValue().contains(db);
+                tasks.add(() -> {
+                    estimateDestination(db, srcHms, srcTables, dst.getKey(), exists);
+                    return null;
+                });
+            }
+            WorkScheduler.get().invokeAll(db, tasks);
+        }
+    }
+
+    private void estimateDestination(String db, HMSClient srcHms, Map<String, SourceTable> srcTables,
+                                     HMSClient dstRoot, boolean exists) throws TException {
+        try (HMSClient dstHms = dstRoot.createClient()) {
+            Collection<TableInfo> dstList = exists ? Commands.getTables(dstHms, db) : new ArrayList<>();
+            if (exists) {
+                add(dstHms, db, "Metastore calls", tableListCalls(dstList.size()));
+            }
+            Map<String, TableInfo> dstTables = hiveSync.getTablesMap(dstList);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (SourceTable src : srcTables.values()) {
+                TableInfo dst = dstTables.get(src.table.getName());
+                if (dst != null) {
+                    if (src.table.isPartitioned()) {
+                        tasks.add(() -> {
+                            estimatePartitions(db, srcHms, dstHms, src, dst);
+                            return null;
+                        });
+                    }
+                } else {
+                    tasks.add(() -> {
+                        // replicated tables are only counted as drops
+                        long count = src.table.isReplicated() ? 0 : src.count(srcHms);
+                        estimateMissingTable(db, dstHms, dstHms, src.table, count, "src");
+                        return null;
+                    });
+                }
+            }
+            for (TableInfo dst : dstTables.values()) {
+                if (!srcTables.containsKey(dst.getName())) {
+                    tasks.add(() -> {
+                        long count = dst.isReplicated() ? 0 : Commands.getPartitionCount(dstHms, dst);
+                        estimateMissingTable(db, dstHms, srcHms, dst, count, "dst");
+                        return null;
+                    });
+                }
+            }
+            WorkScheduler.get().invokeAll(db, tasks);
+        }
+    }
+
+    /**
+     * A table of one side only is dropped if it was replicated, otherwise created with all its partitions,
+     * or kept if the sync is one way.
+     */
+    private void estimateMissingTable(String db, HMSClient dstHms, HMSClient toHms, TableInfo table, long count,
+                                      String side) {
+        if (table.isReplicated()) {
+            add(dstHms, db, "Tables to drop in " + side, 1);
+            add(dstHms, db, "Metastore calls", 1);
+            return;
+        }
+        if (!twoWay && "dst".equals(side)) {
+            add(dstHms, db, "Tables only in dst kept", 1);
+            return;
+        }
+        add(dstHms, db, "Tables to create from " + side, 1);
+        add(dstHms, db, "Metastore calls", 1);
+        if (table.isPartitioned()) {
+            add(dstHms, db, "Partitions to create from " + side, count);
+            // src names are listed once for all dst metastores
+            add(dstHms, db, "Metastore calls", ("dst".equals(side) ? 1 : 0) + copyCalls(toHms, count));
+        }
+    }
+
+    private void estimatePartitions(String db, HMSClient srcHms, HMSClient dstHms,
+                                    SourceTable src, TableInfo dst) throws TException {
+        long srcCount = src.count(srcHms);
+        long dstCount = Commands.getPartitionCount(dstHms, dst);
+        long srcOnly;
+        long dstOnly;
+        if (srcCount == 0 || dstCount == 0 || Math.max(srcCount, dstCount) > spillThreshold) {
+            // exact if a side is empty, a lower bound otherwise
+            srcOnly = Math.max(0, srcCount - dstCount);
+            dstOnly = Math.max(0, dstCount - srcCount);
+            if (srcCount != 0 && dstCount != 0) {
+                add(dstHms, db, "Tables estimated from partition counts", 1);
+            }
+        } else {
+            PartitionIndex srcParts = src.names(srcHms);
+            PartitionIndex dstParts = PartitionIndex.of(Commands.getPartitionNames(dstHms, dst));
+            srcOnly = srcParts.missingIn(dstParts).size();
+            dstOnly = dstParts.missingIn(srcParts).size();
+        }
+        if (srcOnly > 0 || dstOnly > 0) {
+            add(dstHms, db, "Tables with partitions to sync", 1);
+        }
+        add(dstHms, db, "Partitions to create from src", srcOnly);
+        // replicated ones are dropped, the others copied to src or kept, which one is known only from the partitions
+        add(dstHms, db, twoWay ? "Partitions only in dst, to drop or create in src"
+                : "Partitions only in dst, to drop or keep", dstOnly);
+        add(dstHms, db, "Metastore calls",
+                1 + copyCalls(dstHms, srcOnly) + copyCalls(twoWay ? srcHms : dstHms, dstOnly));
+    }
+
+    /**
+     * Partition count and names of a src table, listed once for all dst metastores.
+     */
+    private class SourceTable {
+        private final TableInfo table;
+        private Long count;
+        private PartitionIndex names;
+
+        private SourceTable(TableInfo table) {
+            this.table = table;
+        }
+
+        private synchronized long count(HMSClient srcHms) throws TException {
+            if (count == null) {
+                count = Commands.getPartitionCount(srcHms, table);
+                // the partition names are listed once
+                add(srcGroup, table.getDb(), "Metastore calls", table.isPartitioned() ? 1 : 0);
+            }
+            return count;
+        }
+
+        private synchronized PartitionIndex names(HMSClient srcHms) throws TException {
+            if (names == null) {
+                names = PartitionIndex.of(Commands.getPartitionNames(srcHms, table));
+            }
+            return names;
+        }
+    }
+
+    private static long tableListCalls(int tables) {
+        return 1 + ceil(tables, Commands.getTableBatchSize());
+    }
+
+    /**
+     * Calls to fetch partitions and write them in batches of the current write batch size.
+     */
+    private static long copyCalls(HMSClient toHms, long partitions) {
+        return ceil(partitions, FETCH_BATCH) + ceil(partitions, WorkScheduler.get().writeBatchSize(toHms));
+    }
+
+    private static long ceil(long n, int batch) {
+        return (n + batch - 1) / batch;
+    }
+
+    private void add(HMSClient hms, String db, String name, long delta) {
+        add(hms.getUri(), db, name, delta);
+    }
+
+    private void add(String group, String db, String name, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (String key : new String[]{db, TOTAL}) {
+            counters.get(group).computeIfAbsent(key, k -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+        }
+    }
+
+    private void log() {
+        for (Map.Entry<String, Map<String, Map<String, AtomicLong>>> group : counters.entrySet()) {
+            if (!twoWay) {
+                LOG.info("Estimate: {} {}", group.getKey().equals(srcGroup) ? "source" : "destination",
+                        group.getKey());
+            }
+            for (Map.Entry<String, Map<String, AtomicLong>> db : group.getValue().entrySet()) {
+                if (TOTAL.equals(db.getKey())) {
+                    continue;
+                }
+                for (Map.Entry<String, AtomicLong> e : db.getValue().entrySet()) {
+                    LOG.info("Estimate: {}: {}: {}", db.getKey(), e.getKey(), e.getValue().get());
+                }
+            }
+            for (Map.Entry<String, AtomicLong> e : group.getValue().getOrDefault(TOTAL, new TreeMap<>()).entrySet()) {
+                LOG.info("Estimate: all databases: {}: {}", e.getKey(), e.getValue().get());
+            }
+        }
+    }
+}
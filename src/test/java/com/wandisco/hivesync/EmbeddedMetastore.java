@@ -0,0 +1,138 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.hive.HMSClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Hive metastore Thrift server on a random port, backed by a Derby database under {@code target/embedded-metastore}.
+ * <p>
+ * The server runs in a child JVM with the test classpath: metastores in one JVM would share the static
+ * persistence manager of the object store.
+ */
+public class EmbeddedMetastore implements AutoCloseable {
+
+    private static final String MAIN_CLASS = "org.apache.hadoop.hive.metastore.HiveMetaStore";
+    private static final long START_TIMEOUT = TimeUnit.MINUTES.toMillis(3);
+
+    private final String name;
+    private final Path dir;
+    private final int port;
+    private Process process;
+
+    private EmbeddedMetastore(String name) throws IOException {
+        this.name = name;
+        this.dir = Paths.get("target", "embedded-metastore", name).toAbsolutePath();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            this.port = socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts a metastore with an empty database and waits until it serves requests.
+     */
+    public static EmbeddedMetastore start(String name) throws Exception {
+        EmbeddedMetastore metastore = new EmbeddedMetastore(name);
+        metastore.start();
+        return metastore;
+    }
+
+    private void start() throws Exception {
+        delete(dir);
+        Files.createDirectories(dir.resolve("warehouse"));
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-Xmx" + System.getProperty("embedded.metastore.heap", "2g"));
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(MAIN_CLASS);
+        cmd.add("-p");
+        cmd.add(Integer.toString(port));
+        hiveconf(cmd, "javax.jdo.option.ConnectionURL",
+                "jdbc:derby:;databaseName=" + dir.resolve("metastore_db") + ";create=true");
+        hiveconf(cmd, "javax.jdo.option.ConnectionDriverName", "org.apache.derby.jdbc.EmbeddedDriver");
+        hiveconf(cmd, "datanucleus.schema.autoCreateAll", "true");
+        hiveconf(cmd, "hive.metastore.schema.verification", "false");
+        hiveconf(cmd, "metastore.schema.verification", "false");
+        hiveconf(cmd, "metastore.warehouse.dir", dir.resolve("warehouse").toUri().toString());
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(dir.resolve("metastore.log").toFile());
+        process = pb.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        System.err.print("Starting metastore " + name + " on port " + port + " ");
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (!isServing()) {
+            if (!process.isAlive()) {
+                throw new Exception("Metastore " + name + " exited, see " + dir.resolve("metastore.log"));
+            }
+            if (System.currentTimeMillis() > deadline) {
+                close();
+                throw new Exception("Metastore " + name + " didn't start, see " + dir.resolve("metastore.log"));
+            }
+            System.err.print(".");
+            Thread.sleep(1_000);
+        }
+        System.err.println();
+    }
+
+    private boolean isServing() {
+        try (HMSClient hms = Tools.createNewMetaConnection(getUri(), false)) {
+            hms.getAllDatabases();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public String getUri() {
+        return "thrift://localhost:" + port;
+    }
+
+    /**
+     * Directory for table and partition locations of this metastore.
+     */
+    public String getWarehouse() {
+        return dir.resolve("warehouse").toUri().toString();
+    }
+
+    @Override
+    public void close() {
+        if (process != null && process.isAlive()) {
+            process.destroy();
+            try {
+                if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void hiveconf(List<String> cmd, String key, String value) {
+        cmd.add("--hiveconf");
+        cmd.add(key + "=" + value);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
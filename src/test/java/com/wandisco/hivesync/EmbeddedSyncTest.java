@@ -0,0 +1,211 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.hive.HMSClient;
+import com.wandisco.hivesync.hive.PartitionDigest;
+import com.wandisco.hivesync.main.HiveSync;
+import org.apache.hadoop.hive.metastore.PartitionDropOptions;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Sync between two embedded metastores, no docker needed: {@code mvn test -Pembedded}.
+ */
+public class EmbeddedSyncTest {
+
+    private static final int DATABASES = 2;
+    private static final int TABLES = 2;
+    private static final int PARTITIONS = 1200;
+
+    private EmbeddedMetastore src;
+    private EmbeddedMetastore dst;
+    private HMSClient srcHms;
+    private HMSClient dstHms;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        src = EmbeddedMetastore.start("src");
+        dst = EmbeddedMetastore.start("dst");
+        srcHms = Tools.createNewMetaConnection(src.getUri(), false);
+        dstHms = Tools.createNewMetaConnection(dst.getUri(), false);
+        new MetastoreDataGenerator(srcHms, src.getWarehouse()).generate("syncdb", DATABASES, TABLES, PARTITIONS);
+        // partitions created in dst only are copied back to src
+        MetastoreDataGenerator dstData = new MetastoreDataGenerator(dstHms, dst.getWarehouse());
+        dstData.createDatabase("syncdb0");
+        dstData.addPartitions(dstData.createTable("syncdb0", "tbl0"), PARTITIONS, 100);
+    }
+
+    @AfterClass
+    public void cleanup() throws Exception {
+        srcHms.close();
+        dstHms.close();
+        src.close();
+        dst.close();
+    }
+
+    private HiveSync hiveSync() throws Exception {
+        return new HiveSync(src.getUri(), dst.getUri(), false,
+                Collections.singletonList("syncdb*"), Collections.singletonList("*"));
+    }
+
+    private Set<String> partitions(HMSClient hms, String db, String table) throws Exception {
+        return new HashSet<>(hms.listPartitionNames(db, table, (short) -1));
+    }
+
+    private void checkInSync(String db, String table, int expected) throws Exception {
+        Set<String> srcParts = partitions(srcHms, db, table);
+        Assert.assertEquals(srcParts.size(), expected, db + "." + table);
+        Assert.assertEquals(partitions(dstHms, db, table), srcParts, db + "." + table);
+    }
+
+    @Test
+    public void check1FullSync() throws Exception {
+        hiveSync().execute();
+        for (int d = 0; d < DATABASES; d++) {
+            Assert.assertEquals(new HashSet<>(dstHms.getAllTables("syncdb" + d)),
+                    new HashSet<>(srcHms.getAllTables("syncdb" + d)));
+            for (int t = 0; t < TABLES; t++) {
+                checkInSync("syncdb" + d, "tbl" + t, d == 0 && t == 0 ? PARTITIONS + 100 : PARTITIONS);
+            }
+        }
+        Assert.assertTrue(partitions(srcHms, "syncdb0", "tbl0")
+                .contains(MetastoreDataGenerator.partitionName(PARTITIONS)));
+    }
+
+    @Test
+    public void check2DropPartitions() throws Exception {
+        PartitionDropOptions options = new PartitionDropOptions().deleteData(false);
+        for (int i = 0; i < 50; i++) {
+            srcHms.dropPartition("syncdb1", "tbl1", MetastoreDataGenerator.partitionValues(i), options);
+        }
+        hiveSync().execute();
+        checkInSync("syncdb1", "tbl1", PARTITIONS - 50);
+        Assert.assertFalse(partitions(dstHms, "syncdb1", "tbl1").contains(MetastoreDataGenerator.partitionName(0)));
+    }
+
+    @Test
+    public void check3Resync() throws Exception {
+        hiveSync().execute();
+        checkInSync("syncdb0", "tbl0", PARTITIONS + 100);
+        checkInSync("syncdb1", "tbl1", PARTITIONS - 50);
+    }
+
+    @Test
+    public void check4ReplicaDigest() throws Exception {
+        Assert.assertNotNull(dstHms.getTable("syncdb1", "tbl0").getParameters().get(PartitionDigest.PARAMETER));
+        // new partitions are found by listing the changed digest buckets of dst only
+        new MetastoreDataGenerator(srcHms, src.getWarehouse()).addPartitions(srcHms.getTable("syncdb1", "tbl0"),
+                PARTITIONS, 30);
+        hiveSync().execute();
+        checkInSync("syncdb1", "tbl0", PARTITIONS + 30);
+        Assert.assertEquals(dstHms.getTable("syncdb1", "tbl0").getParameters().get(PartitionDigest.PARAMETER),
+                PartitionDigest.of(partitions(srcHms, "syncdb1", "tbl0")).toString());
+    }
+
+    @Test
+    public void check5SkipUnchangedRetention() throws Exception {
+        HiveSync hs = hiveSync();
+        hs.setSkipUnchanged(true);
+        hs.execute();
+        // the newest partition is added and the oldest dropped: count and DDL time stay the same
+        new MetastoreDataGenerator(srcHms, src.getWarehouse()).addPartitions(srcHms.getTable("syncdb1", "tbl1"),
+                PARTITIONS, 1);
+        srcHms.dropPartition("syncdb1", "tbl1", MetastoreDataGenerator.partitionValues(50),
+                new PartitionDropOptions().deleteData(false));
+        hs.execute();
+        checkInSync("syncdb1", "tbl1", PARTITIONS - 50);
+        Set<String> dstParts = partitions(dstHms, "syncdb1", "tbl1");
+        Assert.assertTrue(dstParts.contains(MetastoreDataGenerator.partitionName(PARTITIONS)));
+        Assert.assertFalse(dstParts.contains(MetastoreDataGenerator.partitionName(50)));
+    }
+
+    @Test
+    public void check6SpillDiff() throws Exception {
+        Path spillDir = Files.createTempDirectory("spill-test");
+        // src-only, dst-only and dropped partitions are found by merging runs of 100 names
+        new MetastoreDataGenerator(srcHms, src.getWarehouse()).addPartitions(srcHms.getTable("syncdb1", "tbl1"),
+                PARTITIONS + 1, 20);
+        new MetastoreDataGenerator(dstHms, dst.getWarehouse()).addPartitions(dstHms.getTable("syncdb1", "tbl0"),
+                PARTITIONS + 30, 10);
+        PartitionDropOptions options = new PartitionDropOptions().deleteData(false);
+        for (int i = 60; i < 70; i++) {
+            srcHms.dropPartition("syncdb1", "tbl1", MetastoreDataGenerator.partitionValues(i), options);
+        }
+        HiveSync.setSpill(100, spillDir.toString());
+        try {
+            hiveSync().execute();
+        } finally {
+            HiveSync.setSpill(2_000_000, System.getProperty("java.io.tmpdir"));
+        }
+        checkInSync("syncdb1", "tbl1", PARTITIONS - 50 + 20 - 10);
+        checkInSync("syncdb1", "tbl0", PARTITIONS + 40);
+        try (Stream<Path> files = Files.walk(spillDir)) {
+            Assert.assertEquals(files.filter(path -> path.toString().endsWith(".run")).count(), 0);
+        }
+    }
+
+    @Test
+    public void check7SeveralDestinations() throws Exception {
+        try (EmbeddedMetastore dst2 = EmbeddedMetastore.start("dst2");
+             HMSClient dst2Hms = Tools.createNewMetaConnection(dst2.getUri(), false)) {
+            // dst2 has partitions and tables of its own, replicated ones are dropped and the others kept
+            MetastoreDataGenerator dst2Data = new MetastoreDataGenerator(dst2Hms, dst2.getWarehouse());
+            dst2Data.createDatabase("syncdb1");
+            Table tbl1 = dst2Data.createTable("syncdb1", "tbl1");
+            dst2Data.addPartitions(tbl1, PARTITIONS + 100, 10);
+            for (int i = PARTITIONS + 105; i < PARTITIONS + 110; i++) {
+                Partition p = dst2Hms.getPartition("syncdb1", "tbl1", MetastoreDataGenerator.partitionValues(i));
+                p.getParameters().put("replicated", "true");
+                dst2Hms.alter_partition("syncdb1", "tbl1", p);
+            }
+            dst2Data.addPartitions(dst2Data.createTable("syncdb1", "own"), 0, 5);
+            Table replicated = dst2Data.createTable("syncdb1", "replicated");
+            replicated.putToParameters("replicated", "true");
+            dst2Hms.alter_table("syncdb1", "replicated", replicated);
+
+            Set<String> srcTables = new HashSet<>(srcHms.getAllTables("syncdb1"));
+            Set<String> srcParts = partitions(srcHms, "syncdb1", "tbl1");
+            String unreachable = "thrift://localhost:1";
+            HiveSync hs = new HiveSync(src.getUri(), Arrays.asList(dst.getUri(), dst2.getUri(), unreachable), false,
+                    Collections.singletonList("syncdb*"), Collections.singletonList("*"));
+            // the unreachable dst is reported and doesn't stop the others
+            hs.execute();
+            Assert.assertEquals(hs.getLagging(), Collections.singletonList(unreachable));
+            Assert.assertEquals(new HashSet<>(srcHms.getAllTables("syncdb1")), srcTables);
+            Assert.assertEquals(partitions(srcHms, "syncdb1", "tbl1"), srcParts);
+            checkInSync("syncdb1", "tbl1", srcParts.size());
+            Set<String> dst2Expected = new HashSet<>(srcParts);
+            for (int i = PARTITIONS + 100; i < PARTITIONS + 105; i++) {
+                dst2Expected.add(MetastoreDataGenerator.partitionName(i));
+            }
+            Assert.assertEquals(partitions(dst2Hms, "syncdb1", "tbl1"), dst2Expected);
+            Set<String> dst2Tables = new HashSet<>(srcTables);
+            dst2Tables.add("own");
+            Assert.assertEquals(new HashSet<>(dst2Hms.getAllTables("syncdb1")), dst2Tables);
+            Assert.assertEquals(partitions(dst2Hms, "syncdb1", "own").size(), 5);
+
+            // events go on to the healthy destinations while the unreachable one lags
+            new MetastoreDataGenerator(srcHms, src.getWarehouse()).addPartitions(srcHms.getTable("syncdb1", "tbl1"),
+                    PARTITIONS + 200, 3);
+            hs.syncTables("syncdb1", Collections.singleton("tbl1"));
+            Assert.assertEquals(hs.getLagging(), Collections.singletonList(unreachable));
+            checkInSync("syncdb1", "tbl1", srcParts.size() + 3);
+            Assert.assertTrue(partitions(dst2Hms, "syncdb1", "tbl1")
+                    .contains(MetastoreDataGenerator.partitionName(PARTITIONS + 200)));
+            Assert.assertTrue(partitions(dst2Hms, "syncdb1", "tbl1")
+                    .contains(MetastoreDataGenerator.partitionName(PARTITIONS + 100)));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.ExternalSort;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Sorting of partition names through run files, no metastore needed: {@code mvn test -Pembedded}.
+ */
+public class ExternalSortTest {
+
+    private Path parent;
+    private Path dir;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        parent = Files.createTempDirectory("external-sort-test");
+        dir = ExternalSort.createRunDirectory(parent);
+    }
+
+    @AfterClass
+    public void cleanup() throws Exception {
+        try (Stream<Path> files = Files.walk(parent)) {
+            files.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private List<String> sort(int runSize, List<String> input) throws Exception {
+        List<String> result = new ArrayList<>();
+        try (ExternalSort sort = new ExternalSort(dir, runSize)) {
+            sort.addAll(input);
+            sort.iterator().forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    private long runFiles() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(".run")).count();
+        }
+    }
+
+    @Test
+    public void multipleRunsWithDuplicates() throws Exception {
+        List<String> input = Arrays.asList("d=5", "d=1", "d=3", "d=1", "d=4", "d=3", "d=2", "d=5", "d=1", "d=6");
+        Assert.assertEquals(sort(3, input), Arrays.asList("d=1", "d=2", "d=3", "d=4", "d=5", "d=6"));
+        Assert.assertEquals(runFiles(), 0);
+    }
+
+    @Test
+    public void iteratedTwice() throws Exception {
+        // the spilled src names are merged once per dst metastore
+        try (ExternalSort sort = new ExternalSort(dir, 2)) {
+            sort.addAll(Arrays.asList("d=3", "d=1", "d=2"));
+            List<String> first = new ArrayList<>();
+            List<String> second = new ArrayList<>();
+            Iterator<String> a = sort.iterator();
+            Iterator<String> b = sort.iterator();
+            while (a.hasNext()) {
+                first.add(a.next());
+                if (b.hasNext()) {
+                    second.add(b.next());
+                }
+            }
+            Assert.assertEquals(first, Arrays.asList("d=1", "d=2", "d=3"));
+            Assert.assertEquals(second, first);
+        }
+        Assert.assertEquals(runFiles(), 0);
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Assert.assertEquals(sort(3, Collections.emptyList()), Collections.emptyList());
+    }
+
+    @Test
+    public void longNames() throws Exception {
+        char[] chars = new char[100_000];
+        Arrays.fill(chars, '\u00e9');
+        String name = "d=" + new String(chars);
+        Assert.assertEquals(sort(1, Arrays.asList(name, "a=1", name)), Arrays.asList("a=1", name));
+    }
+
+    @Test
+    public void staleRunsDeleted() throws Exception {
+        Path staleFile = Files.createFile(parent.resolve("hivesync-1.run"));
+        Path staleDir = Files.createDirectory(parent.resolve("hivesync-2"));
+        Files.createFile(staleDir.resolve("hivesync-3.run"));
+        Path lock = Files.createFile(staleDir.resolve("lock"));
+        Files.setLastModifiedTime(lock, FileTime.fromMillis(0));
+        Path runDir = ExternalSort.createRunDirectory(parent);
+        Assert.assertFalse(Files.exists(staleFile));
+        Assert.assertFalse(Files.exists(staleDir));
+        // directories of running processes are kept
+        Assert.assertTrue(Files.exists(dir));
+        Assert.assertTrue(Files.exists(runDir));
+    }
+}
@@ -0,0 +1,133 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.hive.HMSClient;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.SerDeInfo;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fills a metastore with external tables partitioned by {@code dt} and {@code hour}.
+ * Partition {@code i} of every table has the same values, see {@link #partitionValues(int)}.
+ */
+public class MetastoreDataGenerator {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2000, 1, 1);
+
+    private final HMSClient hms;
+    private final String warehouse;
+    private int columns = 10;
+
+    public MetastoreDataGenerator(HMSClient hms, String warehouse) {
+        this.hms = hms;
+        this.warehouse = warehouse.endsWith("/") ? warehouse : warehouse + "/";
+    }
+
+    /**
+     * Number of data columns of generated tables, every partition carries a copy of them.
+     */
+    public MetastoreDataGenerator columns(int columns) {
+        this.columns = columns;
+        return this;
+    }
+
+    /**
+     * Creates databases {@code <prefix>0..N-1}, each with tables {@code tbl0..M-1} of K partitions.
+     */
+    public void generate(String prefix, int databases, int tables, int partitions) throws TException {
+        for (int d = 0; d < databases; d++) {
+            String db = prefix + d;
+            createDatabase(db);
+            for (int t = 0; t < tables; t++) {
+                addPartitions(createTable(db, "tbl" + t), 0, partitions);
+            }
+        }
+    }
+
+    public void createDatabase(String db) throws TException {
+        Database database = new Database();
+        database.setName(db);
+        database.setLocationUri(warehouse + db + ".db");
+        hms.createDatabase(database);
+    }
+
+    public Table createTable(String db, String name) throws TException {
+        List<FieldSchema> cols = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            cols.add(new FieldSchema("col" + i, i % 2 == 0 ? "string" : "bigint", null));
+        }
+        SerDeInfo serde = new SerDeInfo();
+        serde.setSerializationLib("org.apache.hadoop.hive.ql.io.orc.OrcSerde");
+        serde.setParameters(new HashMap<>(Collections.singletonMap("serialization.format", "1")));
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setCols(cols);
+        sd.setLocation(warehouse + db + ".db/" + name);
+        sd.setInputFormat("org.apache.hadoop.hive.ql.io.orc.OrcInputFormat");
+        sd.setOutputFormat("org.apache.hadoop.hive.ql.io.orc.OrcOutputFormat");
+        sd.setSerdeInfo(serde);
+        sd.setBucketCols(new ArrayList<>());
+        sd.setSortCols(new ArrayList<>());
+        sd.setParameters(new HashMap<>());
+        Table table = new Table();
+        table.setDbName(db);
+        table.setTableName(name);
+        table.setOwner("hivesync");
+        table.setTableType("EXTERNAL_TABLE");
+        table.setParameters(new HashMap<>(Collections.singletonMap("EXTERNAL", "TRUE")));
+        table.setSd(sd);
+        table.setPartitionKeys(Arrays.asList(
+                new FieldSchema("dt", "string", null),
+                new FieldSchema("hour", "string", null)));
+        hms.createTable(table);
+        return hms.getTable(db, name);
+    }
+
+    /**
+     * Adds partitions {@code from..from+count-1}, existing ones are kept.
+     */
+    public void addPartitions(Table table, int from, int count) throws TException {
+        List<Partition> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = from; i < from + count; i++) {
+            batch.add(makePartition(table, i));
+            if (batch.size() == BATCH_SIZE) {
+                hms.add_partitions(batch, true, false);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            hms.add_partitions(batch, true, false);
+        }
+    }
+
+    public static List<String> partitionValues(int i) {
+        return Arrays.asList(FIRST_DAY.plusDays(i / 24).toString(), String.format("%02d", i % 24));
+    }
+
+    public static String partitionName(int i) {
+        List<String> values = partitionValues(i);
+        return "dt=" + values.get(0) + "/hour=" + values.get(1);
+    }
+
+    private static Partition makePartition(Table table, int i) {
+        StorageDescriptor sd = table.getSd().deepCopy();
+        sd.setLocation(table.getSd().getLocation() + "/" + partitionName(i));
+        Partition partition = new Partition();
+        partition.setDbName(table.getDbName());
+        partition.setTableName(table.getTableName());
+        partition.setValues(partitionValues(i));
+        partition.setSd(sd);
+        partition.setParameters(new HashMap<>());
+        return partition;
+    }
+}
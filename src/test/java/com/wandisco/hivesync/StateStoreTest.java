@@ -0,0 +1,126 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.hive.Fingerprint;
+import com.wandisco.hivesync.main.StateStore;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Replay of the sync state journal and snapshot, no metastore needed: {@code mvn test -Pembedded}.
+ */
+public class StateStoreTest {
+
+    private static final Fingerprint SRC = new Fingerprint(100, 3000, Fingerprint.names("a", "z"));
+    private static final Fingerprint DST = new Fingerprint(200, 10, Fingerprint.names("b", "y"));
+
+    private Path dir;
+    private List<String> srcOnly;
+    private List<String> dstOnly;
+
+    @BeforeClass
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("state-store-test");
+        srcOnly = names(2500);
+        dstOnly = names(3);
+    }
+
+    @AfterClass
+    public void cleanup() throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("dt=2024-01-01/id=" + i);
+        }
+        return names;
+    }
+
+    private void appendJournal(String... lines) throws Exception {
+        Files.write(dir.resolve("journal"), Arrays.asList(lines), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void check1ResumeFromJournal() throws Exception {
+        StateStore state = new StateStore(dir.toString());
+        state.startRun();
+        state.tableDone("db.done", SRC, DST);
+        // the names of the src side take three NAMES records
+        state.planTable("db.plan", SRC, DST, srcOnly, dstOnly);
+        state.pageDone("db.plan", StateStore.SRC, 0, 1000, 0);
+        state.pageDone("db.plan", StateStore.DST, 0, 3, 0);
+        // a plan cut off by a crash after its first NAMES record
+        appendJournal("PLAN\tdb.cut\tsrc\t" + SRC + "\t" + DST + "\t2000",
+                "NAMES\tdb.cut\tsrc\tdt=1",
+                // the legacy plan format, names inline
+                "PLAN\tdb.legacy\tsrc\t" + SRC + "\t" + DST + "\tdt=1\tdt=2",
+                "PLAN\tdb.legacy\tdst\t" + SRC + "\t" + DST);
+
+        StateStore loaded = new StateStore(dir.toString());
+        Assert.assertTrue(loaded.isResumed("db.done"));
+        Assert.assertTrue(loaded.isUnchanged("db.done", SRC, DST));
+        Assert.assertFalse(loaded.isUnchanged("db.done", SRC, new Fingerprint(200, 11, Fingerprint.names("b", "y"))));
+
+        StateStore.TablePlan plan = loaded.getPlan("db.plan");
+        Assert.assertNotNull(plan);
+        Assert.assertEquals(plan.getNames(StateStore.SRC), srcOnly);
+        Assert.assertEquals(plan.getNames(StateStore.DST), dstOnly);
+        Assert.assertTrue(plan.isPageDone(StateStore.SRC, 0));
+        Assert.assertFalse(plan.isPageDone(StateStore.SRC, 1));
+        Assert.assertTrue(plan.isPageDone(StateStore.DST, 0));
+        // the written pages created 1000 partitions in dst and 3 in src
+        Assert.assertTrue(plan.matches(new Fingerprint(100, 3003, null), new Fingerprint(200, 1010, null)));
+        Assert.assertFalse(plan.matches(SRC, DST));
+
+        Assert.assertNull(loaded.getPlan("db.cut"));
+        StateStore.TablePlan legacy = loaded.getPlan("db.legacy");
+        Assert.assertNotNull(legacy);
+        Assert.assertEquals(legacy.getNames(StateStore.SRC), Arrays.asList("dt=1", "dt=2"));
+        Assert.assertEquals(legacy.getNames(StateStore.DST), Collections.emptyList());
+    }
+
+    @Test
+    public void check2Compaction() throws Exception {
+        StateStore state = new StateStore(dir.toString());
+        state.pageDone("db.plan", StateStore.SRC, 1, 1000, 0);
+        state.endRun();
+        Assert.assertEquals(Files.size(dir.resolve("journal")), 0);
+        Assert.assertTrue(Files.size(dir.resolve("snapshot")) > 0);
+
+        StateStore loaded = new StateStore(dir.toString());
+        Assert.assertFalse(loaded.isResumed("db.done"));
+        Assert.assertTrue(loaded.isUnchanged("db.done", SRC, DST));
+        StateStore.TablePlan plan = loaded.getPlan("db.plan");
+        Assert.assertNotNull(plan);
+        Assert.assertEquals(plan.getNames(StateStore.SRC), srcOnly);
+        Assert.assertEquals(plan.getNames(StateStore.DST), dstOnly);
+        Assert.assertTrue(plan.isPageDone(StateStore.SRC, 0));
+        Assert.assertTrue(plan.isPageDone(StateStore.SRC, 1));
+        Assert.assertFalse(plan.isPageDone(StateStore.SRC, 2));
+        Assert.assertTrue(plan.matches(new Fingerprint(100, 3003, null), new Fingerprint(200, 2010, null)));
+
+        // done tables replace their plans, and compaction outside a run keeps the state
+        loaded.tableDone("db.plan", SRC, DST);
+        loaded.compact();
+        Assert.assertEquals(Files.size(dir.resolve("journal")), 0);
+        StateStore compacted = new StateStore(dir.toString());
+        Assert.assertNull(compacted.getPlan("db.plan"));
+        Assert.assertTrue(compacted.isUnchanged("db.plan", SRC, DST));
+        Assert.assertNotNull(compacted.getPlan("db.legacy"));
+    }
+}
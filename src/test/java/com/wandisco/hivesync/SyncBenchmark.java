@@ -0,0 +1,195 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.hive.HMSClient;
+import com.wandisco.hivesync.hive.MetastoreMetrics;
+import com.wandisco.hivesync.main.HiveSync;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End-to-end sync runs between two embedded metastores, reported as JSON to compare releases:
+ * {@code mvn test -Pbenchmark -Dbenchmark.partitions=1000000 -DargLine=-Xmx8g}.
+ * <p>
+ * Scenarios run in order on the same metastores: a cold full copy, a no-op resync, new partitions
+ * in the source ({@code benchmark.drift}, a fraction of the partitions) and partitions dropped
+ * from the source ({@code benchmark.drops}). Every table holds {@code benchmark.partitions} partitions.
+ */
+public class SyncBenchmark {
+
+    private static final int DATABASES = Integer.getInteger("benchmark.databases", 1);
+    private static final int TABLES = Integer.getInteger("benchmark.tables", 4);
+    private static final int PARTITIONS = Integer.getInteger("benchmark.partitions", 10_000);
+    private static final int COLUMNS = Integer.getInteger("benchmark.columns", 10);
+    private static final double DRIFT = Double.parseDouble(System.getProperty("benchmark.drift", "0.01"));
+    private static final double DROPS = Double.parseDouble(System.getProperty("benchmark.drops", "0.5"));
+    private static final String OUTPUT = System.getProperty("benchmark.output", "target/sync-benchmark.json");
+
+    private EmbeddedMetastore src;
+    private EmbeddedMetastore dst;
+    private HMSClient srcHms;
+    private HMSClient dstHms;
+    private MetastoreDataGenerator srcData;
+    private final List<String> results = new ArrayList<>();
+
+    @BeforeClass
+    public void setup() throws Exception {
+        src = EmbeddedMetastore.start("bench-src");
+        dst = EmbeddedMetastore.start("bench-dst");
+        srcHms = Tools.createNewMetaConnection(src.getUri(), false);
+        dstHms = Tools.createNewMetaConnection(dst.getUri(), false);
+        srcData = new MetastoreDataGenerator(srcHms, src.getWarehouse()).columns(COLUMNS);
+    }
+
+    @AfterClass
+    public void cleanup() throws Exception {
+        srcHms.close();
+        dstHms.close();
+        src.close();
+        dst.close();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        srcData.generate("benchdb", DATABASES, TABLES, PARTITIONS);
+        run("cold-full-copy");
+        checkInSync(PARTITIONS);
+
+        run("no-op-resync");
+
+        int drift = (int) Math.max(1, PARTITIONS * DRIFT);
+        forEachTable((db, table) -> srcData.addPartitions(srcHms.getTable(db, table), PARTITIONS, drift));
+        run("drift");
+        checkInSync(PARTITIONS + drift);
+
+        // recreating the tables is much faster than dropping partitions one by one
+        int drops = (int) (PARTITIONS * DROPS);
+        forEachTable((db, table) -> {
+            srcHms.dropTable(db, table, false, false);
+            srcData.addPartitions(srcData.createTable(db, table), drops, PARTITIONS + drift - drops);
+        });
+        run("heavy-drops");
+        checkInSync(PARTITIONS + drift - drops);
+
+        writeReport();
+    }
+
+    private void run(String scenario) throws Exception {
+        Map<String, Long> srcCalls = MetastoreMetrics.callCounts(src.getUri());
+        Map<String, Long> dstCalls = MetastoreMetrics.callCounts(dst.getUri());
+        long written = partitionsWritten();
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        new HiveSync(src.getUri(), dst.getUri(), false,
+                Collections.singletonList("benchdb*"), Collections.singletonList("*")).execute();
+        long nanos = System.nanoTime() - start;
+        // sum of the pool peaks, an upper bound of the peak heap use
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        written = partitionsWritten() - written;
+        Map<String, Long> srcDelta = delta(MetastoreMetrics.callCounts(src.getUri()), srcCalls);
+        Map<String, Long> dstDelta = delta(MetastoreMetrics.callCounts(dst.getUri()), dstCalls);
+        long calls = srcDelta.values().stream().mapToLong(Long::longValue).sum()
+                + dstDelta.values().stream().mapToLong(Long::longValue).sum();
+        String result = "    {\"scenario\": \"" + scenario + "\"" +
+                ", \"wallMillis\": " + nanos / 1_000_000 +
+                ", \"partitionsWritten\": " + written +
+                ", \"partitionsPerSecond\": " + (long) (written * 1e9 / nanos) +
+                ", \"rpcCalls\": " + calls +
+                ", \"peakHeapBytes\": " + peakHeap +
+                ",\n     \"srcCalls\": " + json(srcDelta) +
+                ",\n     \"dstCalls\": " + json(dstDelta) + "}";
+        System.err.println(result);
+        results.add(result);
+    }
+
+    private long partitionsWritten() {
+        long written = 0;
+        for (String uri : new String[]{src.getUri(), dst.getUri()}) {
+            MetastoreMetrics.PartitionStats stats = MetastoreMetrics.partitions(uri);
+            written += stats.getCreated() + stats.getDropped();
+        }
+        return written;
+    }
+
+    private void checkInSync(int expected) throws Exception {
+        forEachTable((db, table) -> {
+            Assert.assertEquals(dstHms.listPartitionNames(db, table, (short) -1).size(), expected, db + "." + table);
+            Assert.assertEquals(srcHms.listPartitionNames(db, table, (short) -1).size(), expected, db + "." + table);
+        });
+    }
+
+    private void forEachTable(TableAction action) throws Exception {
+        for (int d = 0; d < DATABASES; d++) {
+            for (int t = 0; t < TABLES; t++) {
+                action.apply("benchdb" + d, "tbl" + t);
+            }
+        }
+    }
+
+    private void writeReport() throws IOException {
+        String report = "{\n" +
+                "  \"timestamp\": \"" + Instant.now() + "\",\n" +
+                "  \"java\": \"" + System.getProperty("java.version") + "\",\n" +
+                "  \"scale\": {\"databases\": " + DATABASES + ", \"tables\": " + TABLES +
+                ", \"partitions\": " + PARTITIONS + ", \"columns\": " + COLUMNS +
+                ", \"drift\": " + DRIFT + ", \"drops\": " + DROPS + "},\n" +
+                "  \"results\": [\n" + String.join(",\n", results) + "\n  ]\n}\n";
+        Path output = Paths.get(OUTPUT).toAbsolutePath();
+        Files.createDirectories(output.getParent());
+        Files.write(output, report.getBytes(StandardCharsets.UTF_8));
+        System.err.println("Benchmark report: " + output);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static Map<String, Long> delta(Map<String, Long> after, Map<String, Long> before) {
+        after.replaceAll((method, count) -> count - before.getOrDefault(method, 0L));
+        after.values().removeIf(count -> count == 0);
+        return after;
+    }
+
+    private static String json(Map<String, Long> counts) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append('"').append(e.getKey()).append("\": ").append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    private interface TableAction {
+        void apply(String db, String table) throws Exception;
+    }
+}
@@ -0,0 +1,96 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.Tools;
+import com.wandisco.hivesync.common.Wildcard;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Database and table name patterns, no metastore needed: {@code mvn test -Pembedded}.
+ */
+public class WildcardTest {
+
+    private static void check(String pattern, String name, boolean expected) {
+        Assert.assertEquals(Wildcard.compile(pattern).matches(name), expected, pattern + " ~ " + name);
+        Assert.assertEquals(Tools.match(pattern, name), expected, pattern + " ~ " + name);
+    }
+
+    @Test
+    public void star() {
+        check("*", "", true);
+        check("*", "sales", true);
+        check("sales_*", "sales_", true);
+        check("sales_*", "sales_eu", true);
+        check("sales_*", "sale", false);
+        check("a*c", "ac", true);
+        check("a*c", "abbbc", true);
+        check("a*c", "acb", false);
+        check("**a**", "a", true);
+        check("**a**", "xax", true);
+        check("**a**", "xyz", false);
+        check("*a*a*a*b", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", false);
+        check("*a*a*a*b", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaab", true);
+    }
+
+    @Test
+    public void questionMark() {
+        check("?", "a", true);
+        check("?", "", false);
+        check("?", "ab", false);
+        check("a?c", "abc", true);
+        check("a?c", "ac", false);
+        // a trailing '?' needs exactly one more character
+        check("tbl?", "tbl1", true);
+        check("tbl?", "tbl", false);
+        check("tbl?", "tbl12", false);
+        check("?*", "", false);
+        check("?*", "x", true);
+    }
+
+    @Test
+    public void literal() {
+        check("", "", true);
+        check("", "a", false);
+        check("sales", "sales", true);
+        check("sales", "Sales", false);
+        check("sales", "sales1", false);
+        check("d\u00e9*", "d\u00e9j\u00e0", true);
+        check("d\u00e9*", "de", false);
+    }
+
+    @Test
+    public void lists() {
+        // a comma-separated --database or --table value is a list of patterns
+        Wildcard list = Wildcard.compile(Arrays.asList("db1", "sales_*"));
+        Assert.assertTrue(list.matches("db1"));
+        Assert.assertTrue(list.matches("sales_eu"));
+        Assert.assertFalse(list.matches("db2"));
+        Assert.assertTrue(Tools.match(Arrays.asList("db1", "sales_*"), "sales_eu"));
+        Assert.assertFalse(Wildcard.compile(new ArrayList<>()).matches("db1"));
+
+        // and so are |-separated alternatives, as in Hive name patterns
+        check("db1|sales_*", "db1", true);
+        check("db1|sales_*", "sales_eu", true);
+        check("db1|sales_*", "db1|sales_eu", false);
+        check("db1|sales_*", "db2", false);
+        check("db1|", "", true);
+    }
+
+    @Test
+    public void manyPatterns() {
+        // states of more than 64 pattern positions span several words
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            patterns.add("table_" + i + "_?");
+        }
+        Wildcard wildcard = Wildcard.compile(patterns);
+        Assert.assertTrue(wildcard.matches("table_0_a"));
+        Assert.assertTrue(wildcard.matches("table_39_x"));
+        Assert.assertFalse(wildcard.matches("table_39_"));
+        Assert.assertFalse(wildcard.matches("table_40_x"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.wandisco.hivesync;
+
+import com.wandisco.hivesync.common.WorkScheduler;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Task order of the scheduler, no metastore needed: {@code mvn test -Pembedded}.
+ */
+public class WorkSchedulerTest {
+
+    private static final int THREADS = 2;
+    private static final int GROUPS = 5;
+
+    @BeforeClass
+    public void setup() {
+        WorkScheduler.configure(THREADS, 16, 8);
+    }
+
+    @AfterClass
+    public void cleanup() {
+        WorkScheduler.configure(16, 16, 8);
+    }
+
+    @Test
+    public void costliestFirstAcrossGroups() throws Exception {
+        WorkScheduler scheduler = WorkScheduler.get();
+        // keep the workers busy until all tasks are queued
+        CountDownLatch busy = new CountDownLatch(THREADS);
+        CountDownLatch release = new CountDownLatch(1);
+        List<FutureTask<Void>> blockers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            blockers.add(scheduler.submit("blocker", () -> {
+                busy.countDown();
+                release.await();
+                return null;
+            }));
+        }
+        busy.await();
+        // more groups than threads, the costliest tasks in the last groups
+        List<Long> started = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Map<Callable<Void>, Long>> tasks = new LinkedHashMap<>();
+        for (int g = 0; g < GROUPS; g++) {
+            Map<Callable<Void>, Long> group = new LinkedHashMap<>();
+            for (int t = 0; t < 3; t++) {
+                long cost = g * 10 + t;
+                group.put(() -> {
+                    started.add(cost);
+                    Thread.sleep(50);
+                    return null;
+                }, cost);
+            }
+            tasks.put("db" + g, group);
+        }
+        Thread caller = new Thread(() -> {
+            try {
+                scheduler.invokeAllGroups(tasks);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        caller.start();
+        Thread.sleep(100);
+        release.countDown();
+        caller.join();
+        scheduler.awaitAll(blockers);
+        Assert.assertEquals(started.size(), GROUPS * 3);
+        // the workers and the waiting caller start the costliest tasks of all groups first
+        Assert.assertEquals(new HashSet<>(started.subList(0, THREADS + 1)),
+                new HashSet<>(Arrays.asList(42L, 41L, 40L)));
+    }
+}